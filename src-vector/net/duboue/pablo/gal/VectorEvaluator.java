@@ -0,0 +1,94 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.gal;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import net.duboue.pablo.util.PackedInts;
+
+/**
+ * A block evaluator that walks as many automata as fit in a vector register
+ * at once, looking up their next states with a single gather per symbol. It
+ * needs the jdk.incubator.vector module (--add-modules jdk.incubator.vector),
+ * so it lives in its own source root (src-vector) that is only compiled when
+ * the module is available. It is only loaded through
+ * PopulationEvaluator.newInstance, which falls back to the scalar walk when
+ * it is missing.
+ */
+public class VectorEvaluator extends PopulationEvaluator {
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+	/** Table positions looked up by the gather. */
+	private int[] index;
+
+	public VectorEvaluator(int capacity) {
+		super(capacity);
+		this.index = new int[SPECIES.length()];
+	}
+
+	public void consistency(Corpus corpus) {
+		int n = size;
+		int width = SPECIES.length();
+		Arrays.fill(sums, 0, n, 0.0);
+		Arrays.fill(fully, 0, n, 0);
+		PackedInts sequences = corpus.getSymbols();
+
+		for (int lane = 0; lane < n; lane += width) {
+			VectorMask<Integer> lanes = SPECIES.indexInRange(lane, n);
+			IntVector start = IntVector.fromArray(SPECIES, base, lane, lanes);
+			for (int s = 0; s < corpus.size(); s++) {
+				int offset = corpus.offset(s);
+				int seqLength = corpus.length(s);
+				IntVector state = start;
+				IntVector length = IntVector.broadcast(SPECIES, seqLength);
+				VectorMask<Integer> alive = lanes;
+				for (int i = 0; i < seqLength && alive.anyTrue(); i++) {
+					state.add(sequences.get(offset + i)).intoArray(index, 0);
+					IntVector next = IntVector.fromArray(SPECIES, tables, 0,
+							index, 0, alive);
+					VectorMask<Integer> stop = next.compare(VectorOperators.LT,
+							0, alive);
+					length = length.blend(i, stop);
+					alive = alive.andNot(stop);
+					state = state.blend(start.add(next.mul(symbols)), alive);
+				}
+				state.intoArray(this.state, lane, lanes);
+				length.intoArray(matched, lane, lanes);
+
+				int weight = corpus.weight(s);
+				int end = Math.min(lane + width, n);
+				for (int l = lane; l < end; l++)
+					if (matched[l] > 0) {
+						boolean accepted = this.state[l] == last[l];
+						sums[l] += weight
+								* ((double) matched[l] / seqLength - (accepted ? 0
+										: 1.0 / (2.0 * seqLength)));
+						if (accepted)
+							fully[l] += weight;
+					}
+			}
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.gal;
+
+import java.util.Arrays;
+
+import net.duboue.pablo.util.PackedInts;
+
+/**
+ * Training sequences packed one after the other, sequence i being the
+ * symbols from offsets[i] up to (but not including) offsets[i + 1]. Symbols
+ * and offsets are stored at the narrowest width that holds them, so small
+ * alphabets take a byte per symbol.
+ */
+public class Corpus {
+	protected String[] alphabet;
+	protected PackedInts offsets;
+	protected PackedInts symbols;
+	/** How many times each sequence appears, null if once. */
+	protected PackedInts weights;
+	/** Number of sequences, repeats included. */
+	protected int totalWeight;
+	/** The sequences compiled into a prefix trie, null if not compiled. */
+	protected PrefixTrie trie;
+
+	/**
+	 * @param alphabet
+	 *            the symbol names, can be null.
+	 * @param weights
+	 *            how many times each sequence appears, null if once.
+	 */
+	public Corpus(String[] alphabet, PackedInts offsets, PackedInts symbols,
+			PackedInts weights) {
+		this(alphabet, offsets, symbols, weights, 0);
+		for (int i = 0; i < size(); i++)
+			totalWeight += weight(i);
+	}
+
+	/**
+	 * Same as above, for an already known number of sequences (repeats
+	 * included), so the weights are not read.
+	 */
+	public Corpus(String[] alphabet, PackedInts offsets, PackedInts symbols,
+			PackedInts weights, int totalWeight) {
+		this.alphabet = alphabet;
+		this.offsets = offsets;
+		this.symbols = symbols;
+		this.weights = weights;
+		this.totalWeight = totalWeight;
+	}
+
+	/**
+	 * Pack sequences held as arrays.
+	 */
+	public Corpus(String[] alphabet, int[][] sequences, int[] weights) {
+		int total = 0;
+		int max = 0;
+		for (int[] seq : sequences) {
+			total += seq.length;
+			for (int symbol : seq)
+				if (symbol > max)
+					max = symbol;
+		}
+		this.alphabet = alphabet;
+		this.offsets = PackedInts.allocate(sequences.length + 1, total);
+		this.symbols = PackedInts.allocate(total, max);
+		int pos = 0;
+		for (int i = 0; i < sequences.length; i++) {
+			offsets.set(i, pos);
+			symbols.set(pos, sequences[i], 0, sequences[i].length);
+			pos += sequences[i].length;
+		}
+		offsets.set(sequences.length, pos);
+		if (weights != null)
+			this.weights = PackedInts.valueOf(weights, 0, weights.length);
+		for (int i = 0; i < size(); i++)
+			totalWeight += weight(i);
+	}
+
+	public String[] getAlphabet() {
+		return alphabet;
+	}
+
+	public PackedInts getSymbols() {
+		return symbols;
+	}
+
+	public PackedInts getOffsets() {
+		return offsets;
+	}
+
+	/**
+	 * @return the number of times each sequence appears, null if once.
+	 */
+	public PackedInts getWeights() {
+		return weights;
+	}
+
+	/**
+	 * @return the sequences compiled into a prefix trie, null if they have not
+	 *         been.
+	 */
+	public PrefixTrie getTrie() {
+		return trie;
+	}
+
+	public void setTrie(PrefixTrie trie) {
+		this.trie = trie;
+	}
+
+	/**
+	 * @return the number of sequences.
+	 */
+	public int size() {
+		return offsets.length() - 1;
+	}
+
+	/**
+	 * @return the number of sequences, repeats included.
+	 */
+	public int getTotalWeight() {
+		return totalWeight;
+	}
+
+	/**
+	 * @return where a sequence starts in the symbols.
+	 */
+	public int offset(int i) {
+		return offsets.get(i);
+	}
+
+	/**
+	 * @return the length of a sequence.
+	 */
+	public int length(int i) {
+		return offsets.get(i + 1) - offsets.get(i);
+	}
+
+	/**
+	 * @return how many times a sequence appears.
+	 */
+	public int weight(int i) {
+		return weights == null ? 1 : weights.get(i);
+	}
+
+	/**
+	 * @return a copy of a sequence.
+	 */
+	public int[] get(int i) {
+		int[] result = new int[length(i)];
+		symbols.get(offset(i), result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * @return the corpus with repeated sequences collapsed, in order of first
+	 *         appearance, weighted by how many times they appear.
+	 */
+	public Corpus distinct() {
+		int size = size();
+		// open addressing over sequence indices, compared in place
+		int capacity = Integer.highestOneBit(Math.max(1, size) * 2 - 1) << 1;
+		int[] table = new int[capacity];
+		Arrays.fill(table, -1);
+		int[] first = new int[size];
+		int[] counts = new int[size];
+		int found = 0;
+		int total = 0;
+		for (int i = 0; i < size; i++) {
+			int h = hash(i) & (capacity - 1);
+			while (table[h] != -1 && !equal(first[table[h]], i))
+				h = (h + 1) & (capacity - 1);
+			if (table[h] == -1) {
+				table[h] = found;
+				first[found] = i;
+				total += length(i);
+				found++;
+			}
+			counts[table[h]] += weight(i);
+		}
+		int maxWeight = 0;
+		for (int c = 0; c < found; c++)
+			maxWeight = Math.max(maxWeight, counts[c]);
+
+		PackedInts offsets = PackedInts.allocate(found + 1, total);
+		PackedInts symbols = PackedInts.allocate(total, this.symbols
+				.maxValue());
+		PackedInts weights = PackedInts.allocate(found, maxWeight);
+		int pos = 0;
+		for (int c = 0; c < found; c++) {
+			int length = length(first[c]);
+			offsets.set(c, pos);
+			this.symbols.copyTo(offset(first[c]), symbols, pos, length);
+			weights.set(c, counts[c]);
+			pos += length;
+		}
+		offsets.set(found, pos);
+		return new Corpus(alphabet, offsets, symbols, weights);
+	}
+
+	/**
+	 * @return a hash of the symbols of a sequence.
+	 */
+	private int hash(int i) {
+		int result = 1;
+		for (int j = offset(i), end = offset(i + 1); j < end; j++)
+			result = 31 * result + symbols.get(j);
+		// spread the low bits, the table is a power of two
+		return result ^ (result >>> 16);
+	}
+
+	/**
+	 * @return whether two sequences have the same symbols.
+	 */
+	private boolean equal(int i, int j) {
+		int length = length(i);
+		if (length != length(j))
+			return false;
+		int a = offset(i);
+		int b = offset(j);
+		for (int k = 0; k < length; k++)
+			if (symbols.get(a + k) != symbols.get(b + k))
+				return false;
+		return true;
+	}
+}
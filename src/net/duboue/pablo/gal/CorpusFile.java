@@ -0,0 +1,310 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.gal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import net.duboue.pablo.util.PackedInts;
+
+/**
+ * A corpus compiled into a binary file, to be memory mapped instead of
+ * parsed. The file holds, big-endian:
+ * 
+ * <pre>
+ * magic, version, flags (1: weights, 2: trie), alphabet size, sequences,
+ *   total weight, symbols, widths of offsets, symbols and weights (0 if
+ *   none), all ints
+ * each symbol name as an int length and its UTF-8 bytes
+ * offsets, symbols, weights, at their widths
+ * trie: size, sequences, max depth, then the symbol, depth, end, ends and
+ *   count ints and the inverse lengths doubles of each node
+ * </pre>
+ * 
+ * Sections start at multiples of 8 bytes. The offsets, symbols and weights
+ * are read in place from a read-only mapping, so opening a corpus costs the
+ * same whatever its size and runs on the same file share the page cache.
+ * LearnFSA reads one when net.duboue.pablo.gal.trainingFormat = compiled.
+ */
+public class CorpusFile {
+	/** "GALC" */
+	public static final int MAGIC = 0x47414c43;
+	public static final int VERSION = 1;
+
+	private static final int WEIGHTS = 1;
+	private static final int TRIE = 2;
+	private static final int HEADER = 10 * 4;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Compile a training file, collapsing repeated sequences.
+	 * 
+	 * Usage: CorpusFile training-file corpus-file [trie]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err
+					.println("Must specify the training sequences file and the corpus file to write,\n"
+							+ "followed by 'trie' to also compile the prefix trie.\n");
+			System.exit(-1);
+		}
+		long start = System.currentTimeMillis();
+		Corpus corpus = CorpusReader.read(new File(args[0]), 0).distinct();
+		if (args.length > 2 && "trie".equals(args[2]))
+			corpus.setTrie(new PrefixTrie(corpus));
+		write(corpus, new File(args[1]));
+		System.out.println("Compiled " + corpus.getTotalWeight()
+				+ " sequences (" + corpus.size() + " distinct, "
+				+ corpus.getAlphabet().length + " symbols) in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * @return whether a file starts as a compiled corpus, magic and version.
+	 *         A text file can start the same way, so this is only a hint.
+	 */
+	public static boolean isCorpusFile(File file) throws IOException {
+		if (file.length() < HEADER)
+			return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readInt() == MAGIC && in.readInt() == VERSION;
+		} finally {
+			in.close();
+		}
+	}
+
+	public static void write(Corpus corpus, File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			Output out = new Output(raf.getChannel());
+			PackedInts weights = corpus.getWeights();
+			PrefixTrie trie = corpus.getTrie();
+			String[] alphabet = corpus.getAlphabet();
+			if (alphabet == null)
+				throw new IllegalStateException("Corpus without an alphabet");
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putInt((weights != null ? WEIGHTS : 0)
+					| (trie != null ? TRIE : 0));
+			out.putInt(alphabet.length);
+			out.putInt(corpus.size());
+			out.putInt(corpus.getTotalWeight());
+			int symbolCount = corpus.offset(corpus.size());
+			out.putInt(symbolCount);
+			out.putInt(corpus.getOffsets().width());
+			out.putInt(corpus.getSymbols().width());
+			out.putInt(weights != null ? weights.width() : 0);
+			for (String name : alphabet) {
+				byte[] bytes = name.getBytes(UTF8);
+				out.putInt(bytes.length);
+				for (byte b : bytes)
+					out.put(b, 1);
+			}
+			out.put(corpus.getOffsets(), corpus.size() + 1);
+			out.put(corpus.getSymbols(), symbolCount);
+			if (weights != null)
+				out.put(weights, corpus.size());
+			if (trie != null) {
+				out.align();
+				out.putInt(trie.size);
+				out.putInt(trie.sequences);
+				out.putInt(trie.maxDepth);
+				for (int[] array : new int[][] { trie.symbol, trie.depth,
+						trie.end, trie.ends, trie.count })
+					for (int i = 0; i < trie.size; i++)
+						out.putInt(array[i]);
+				out.align();
+				for (int i = 0; i < trie.size; i++)
+					out.putDouble(trie.inverseLengths[i]);
+			}
+			out.flush();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Open a compiled corpus. Its sequences stay in the file, mapped
+	 * read-only, the mapping outlives the file being closed.
+	 */
+	public static Corpus map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(raf.getFD())));
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a corpus file");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException(file + " has version " + version
+						+ ", only version " + VERSION + " is supported");
+			int flags = in.readInt();
+			String[] alphabet = new String[in.readInt()];
+			int sequences = in.readInt();
+			int totalWeight = in.readInt();
+			int symbolCount = in.readInt();
+			int offsetsWidth = in.readInt();
+			int symbolsWidth = in.readInt();
+			int weightsWidth = in.readInt();
+			long position = HEADER;
+			for (int i = 0; i < alphabet.length; i++) {
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				alphabet[i] = new String(bytes, UTF8);
+				position += 4 + bytes.length;
+			}
+
+			position = align(position);
+			PackedInts offsets = PackedInts.wrap(map(channel, position,
+					(sequences + 1L) * offsetsWidth), offsetsWidth);
+			position = align(position + (sequences + 1L) * offsetsWidth);
+			PackedInts symbols = PackedInts.wrap(map(channel, position,
+					(long) symbolCount * symbolsWidth), symbolsWidth);
+			position = align(position + (long) symbolCount * symbolsWidth);
+			PackedInts weights = null;
+			if ((flags & WEIGHTS) != 0) {
+				weights = PackedInts.wrap(map(channel, position,
+						(long) sequences * weightsWidth), weightsWidth);
+				position = align(position + (long) sequences * weightsWidth);
+			}
+			Corpus corpus = new Corpus(alphabet, offsets, symbols, weights,
+					totalWeight);
+
+			if ((flags & TRIE) != 0) {
+				// the trie is walked from arrays, copy it out
+				PrefixTrie trie = new PrefixTrie();
+				ByteBuffer header = map(channel, position, 12);
+				trie.size = header.getInt(0);
+				trie.sequences = header.getInt(4);
+				trie.maxDepth = header.getInt(8);
+				int size = trie.size;
+				ByteBuffer nodes = map(channel, position + 12, 20L * size);
+				trie.symbol = new int[size];
+				trie.depth = new int[size];
+				trie.end = new int[size];
+				trie.ends = new int[size];
+				trie.count = new int[size];
+				int i = 0;
+				for (int[] array : new int[][] { trie.symbol, trie.depth,
+						trie.end, trie.ends, trie.count }) {
+					nodes.position(i * 4 * size);
+					nodes.asIntBuffer().get(array);
+					i++;
+				}
+				position = align(position + 12 + 20L * size);
+				trie.inverseLengths = new double[size];
+				map(channel, position, 8L * size).asDoubleBuffer().get(
+						trie.inverseLengths);
+				corpus.setTrie(trie);
+			}
+			return corpus;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, long position,
+			long length) throws IOException {
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Corpus section of " + length
+					+ " bytes is too large to map");
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	/**
+	 * Buffered writes to a channel, keeping track of the position.
+	 */
+	private static class Output {
+		private FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		private long written;
+
+		public Output(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		public long position() {
+			return written + buffer.position();
+		}
+
+		public void align() throws IOException {
+			while (position() % 8 != 0)
+				put(0, 1);
+		}
+
+		public void put(int value, int width) throws IOException {
+			if (buffer.remaining() < 8)
+				flush();
+			switch (width) {
+			case 1:
+				buffer.put((byte) value);
+				break;
+			case 2:
+				buffer.putShort((short) value);
+				break;
+			default:
+				buffer.putInt(value);
+			}
+		}
+
+		/**
+		 * Write the first values of an array, starting at the next multiple
+		 * of 8.
+		 */
+		public void put(PackedInts values, int length) throws IOException {
+			align();
+			int width = values.width();
+			for (int i = 0; i < length; i++)
+				put(values.get(i), width);
+		}
+
+		public void putInt(int value) throws IOException {
+			put(value, 4);
+		}
+
+		public void putDouble(double value) throws IOException {
+			if (buffer.remaining() < 8)
+				flush();
+			buffer.putDouble(value);
+		}
+
+		public void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				written += channel.write(buffer);
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.gal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.duboue.pablo.search.FitnessComputer;
+import net.duboue.pablo.util.PackedInts;
+
+/**
+ * Reads a training file into a Corpus. The file is split into chunks at line
+ * boundaries, each chunk is memory mapped and tokenized on its own thread and
+ * the tokens are interned to ints through a shared symbol table as they are
+ * found, without building a String per line.
+ * 
+ * Lines are tokenized as String.split("\\s+") would do it and the alphabet is
+ * in the order a HashSet filled in order of first occurrence iterates it, so
+ * seeded runs learn the same automata than when the file was read line by
+ * line.
+ */
+public class CorpusReader {
+	/** Minimum size of a chunk, smaller files are read by one thread. */
+	public static final int MIN_CHUNK = 1 << 20;
+	/** Maximum size of a chunk, below what a buffer can map. */
+	public static final int MAX_CHUNK = 1 << 30;
+
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	protected ConcurrentHashMap<String, Integer> symbolTable = new ConcurrentHashMap<String, Integer>();
+	protected final Object lock = new Object();
+	protected AtomicInteger nextSymbol = new AtomicInteger();
+
+	/**
+	 * Read a training file, one sequence per line.
+	 * 
+	 * @param threads
+	 *            number of threads tokenizing chunks, 0 for one per core.
+	 */
+	public static Corpus read(File file, int threads) throws IOException {
+		return new CorpusReader().readFile(file, threads);
+	}
+
+	protected Corpus readFile(File file, int threads) throws IOException {
+		if (threads < 1)
+			threads = Runtime.getRuntime().availableProcessors();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			long chunkSize = Math.max(MIN_CHUNK, size / (threads * 4L) + 1);
+			if (chunkSize > MAX_CHUNK)
+				chunkSize = MAX_CHUNK;
+			List<Long> starts = new ArrayList<Long>();
+			long start = 0;
+			while (start < size) {
+				starts.add(start);
+				start = lineStart(channel, Math.min(start + chunkSize, size),
+						size);
+				if (start - starts.get(starts.size() - 1) > Integer.MAX_VALUE)
+					throw new IllegalStateException("Line too long at byte "
+							+ starts.get(starts.size() - 1));
+			}
+			starts.add(size);
+
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			for (int i = 0; i + 1 < starts.size(); i++)
+				chunks.add(new Chunk(channel, starts.get(i), starts.get(i + 1)));
+			if (chunks.size() < 2)
+				for (Chunk chunk : chunks)
+					chunk.call();
+			else {
+				ExecutorService executor = FitnessComputer.newExecutor(
+						FitnessComputer.PLATFORM, Math.min(threads, chunks
+								.size()));
+				try {
+					for (Future<Chunk> f : executor.invokeAll(chunks))
+						f.get();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IllegalStateException(e.getCause());
+				} finally {
+					executor.shutdown();
+				}
+			}
+			return merge(chunks);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the first position at or after from where a line starts.
+	 */
+	protected static long lineStart(FileChannel channel, long from, long size)
+			throws IOException {
+		if (from == 0 || from >= size)
+			return from;
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		long pos = from - 1;
+		int previous = -1;
+		while (pos < size) {
+			buffer.clear();
+			int read = channel.read(buffer, pos);
+			if (read <= 0)
+				break;
+			for (int i = 0; i < read; i++) {
+				int b = buffer.get(i);
+				if (previous == '\n' || (previous == '\r' && b != '\n'))
+					return pos + i;
+				previous = b;
+			}
+			pos += read;
+		}
+		return size;
+	}
+
+	/**
+	 * Put the chunks together, renumbering the symbols so they follow the
+	 * alphabet order.
+	 */
+	protected Corpus merge(List<Chunk> chunks) {
+		// first occurrence order, as seen reading the file from the start
+		int total = nextSymbol.get();
+		String[] byId = new String[total];
+		for (Map.Entry<String, Integer> e : symbolTable.entrySet())
+			byId[e.getValue()] = e.getKey();
+		Set<String> alphabetSet = new HashSet<String>();
+		boolean[] seen = new boolean[total];
+		long symbolCount = 0;
+		int lineCount = 0;
+		for (Chunk chunk : chunks) {
+			for (int i = 0; i < chunk.firstCount; i++)
+				if (!seen[chunk.first[i]]) {
+					seen[chunk.first[i]] = true;
+					alphabetSet.add(byId[chunk.first[i]]);
+				}
+			symbolCount += chunk.symbolCount;
+			lineCount += chunk.lineCount;
+		}
+		if (symbolCount > Integer.MAX_VALUE)
+			throw new IllegalStateException("Too many symbols: " + symbolCount);
+
+		String[] alphabet = new String[total];
+		int[] remap = new int[total];
+		int c = 0;
+		for (String w : alphabetSet) {
+			alphabet[c] = w;
+			remap[symbolTable.get(w)] = c;
+			c++;
+		}
+
+		PackedInts offsets = PackedInts.allocate(lineCount + 1,
+				(int) symbolCount);
+		PackedInts symbols = PackedInts.allocate((int) symbolCount, total - 1);
+		int line = 0;
+		int pos = 0;
+		for (Chunk chunk : chunks) {
+			for (int i = 0; i < chunk.symbolCount; i++)
+				symbols.set(pos + i, remap[chunk.symbols[i]]);
+			for (int i = 0; i < chunk.lineCount; i++) {
+				offsets.set(line++, pos);
+				pos += chunk.lengths[i];
+			}
+		}
+		offsets.set(line, pos);
+		return new Corpus(alphabet, offsets, symbols, null);
+	}
+
+	/**
+	 * @return the id of a token, assigning a new one if never seen.
+	 */
+	protected int intern(String token) {
+		Integer id = symbolTable.get(token);
+		if (id != null)
+			return id;
+		synchronized (lock) {
+			id = symbolTable.get(token);
+			if (id == null) {
+				id = nextSymbol.getAndIncrement();
+				symbolTable.put(token, id);
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * The bytes of a token, used to look tokens up without decoding them.
+	 */
+	protected static class Token {
+		protected byte[] bytes;
+		protected int length;
+		protected int hash;
+
+		public Token(byte[] bytes, int length, int hash) {
+			this.bytes = bytes;
+			this.length = length;
+			this.hash = hash;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Token))
+				return false;
+			Token other = (Token) o;
+			if (other.length != length || other.hash != hash)
+				return false;
+			for (int i = 0; i < length; i++)
+				if (bytes[i] != other.bytes[i])
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * A range of lines of the file, tokenized into symbols with provisional
+	 * ids.
+	 */
+	protected class Chunk implements Callable<Chunk> {
+		protected FileChannel channel;
+		protected long start;
+		protected long end;
+
+		protected int[] symbols = new int[1024];
+		protected int symbolCount;
+		protected int[] lengths = new int[256];
+		protected int lineCount;
+		/** Ids of this chunk in the order they first appear in it. */
+		protected int[] first = new int[64];
+		protected int firstCount;
+
+		protected Map<Token, Integer> local = new HashMap<Token, Integer>();
+		protected byte[] token = new byte[64];
+		protected Token probe = new Token(token, 0, 0);
+
+		public Chunk(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		public Chunk call() throws IOException {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					start, end - start);
+			int size = buffer.limit();
+			int lineStart = 0;
+			int i = 0;
+			while (i < size) {
+				int b = buffer.get(i);
+				if (b == '\n' || b == '\r') {
+					line(buffer, lineStart, i);
+					i++;
+					if (b == '\r' && i < size && buffer.get(i) == '\n')
+						i++;
+					lineStart = i;
+				} else
+					i++;
+			}
+			if (lineStart < size)
+				line(buffer, lineStart, size);
+			return this;
+		}
+
+		/**
+		 * Tokenize the bytes from (inclusive) to to (exclusive) as
+		 * String.split("\\s+"): a leading separator gives an empty token,
+		 * trailing separators do not and a blank line has no tokens, unless it
+		 * is empty.
+		 */
+		protected void line(ByteBuffer buffer, int from, int to) {
+			int before = symbolCount;
+			if (from == to)
+				symbol(buffer, from, to);
+			else {
+				int i = from;
+				while (i < to && isSpace(buffer.get(i)))
+					i++;
+				if (i < to && i > from)
+					symbol(buffer, from, from);
+				while (i < to) {
+					int tokenStart = i;
+					while (i < to && !isSpace(buffer.get(i)))
+						i++;
+					symbol(buffer, tokenStart, i);
+					while (i < to && isSpace(buffer.get(i)))
+						i++;
+				}
+			}
+			if (lineCount == lengths.length)
+				lengths = Arrays.copyOf(lengths, lineCount * 2);
+			lengths[lineCount++] = symbolCount - before;
+		}
+
+		protected void symbol(ByteBuffer buffer, int from, int to) {
+			int length = to - from;
+			if (length > token.length) {
+				token = new byte[Math.max(length, token.length * 2)];
+				probe.bytes = token;
+			}
+			int hash = 1;
+			for (int i = 0; i < length; i++) {
+				byte b = buffer.get(from + i);
+				token[i] = b;
+				hash = 31 * hash + b;
+			}
+			probe.length = length;
+			probe.hash = hash;
+			Integer id = local.get(probe);
+			if (id == null) {
+				id = intern(new String(token, 0, length, CHARSET));
+				local.put(new Token(Arrays.copyOf(token, length), length, hash),
+						id);
+				if (firstCount == first.length)
+					first = Arrays.copyOf(first, firstCount * 2);
+				first[firstCount++] = id;
+			}
+			if (symbolCount == symbols.length)
+				symbols = Arrays.copyOf(symbols, symbolCount * 2);
+			symbols[symbolCount++] = id;
+		}
+	}
+
+	/**
+	 * @return whether a byte is whitespace for \s.
+	 */
+	protected static boolean isSpace(int b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f'
+				|| b == '\r';
+	}
+}
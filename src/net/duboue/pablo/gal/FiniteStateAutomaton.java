@@ -22,16 +22,21 @@ package net.duboue.pablo.gal;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.Serializable;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.duboue.pablo.search.Instance;
 import net.duboue.pablo.search.InstanceFactory;
+import net.duboue.pablo.util.PackedInts;
 
 public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 	/**
@@ -42,7 +47,27 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 	protected String[] alphabet;
 
 	protected int numberOfNodes;
-	protected int[][] transitionTable;
+	/**
+	 * Row-major: the target of state i on symbol j is at
+	 * transitionTable.get(i * alphabet.length + j), -1 if there is no
+	 * transition. It is as narrow as the number of states allows and it can be
+	 * longer than numberOfNodes * alphabet.length. Serialized as an int array.
+	 */
+	protected PackedInts transitionTable;
+	/**
+	 * How many automata use transitionTable (clones share it until one of them
+	 * changes it, see own), null if only this one.
+	 */
+	protected transient AtomicInteger sharers;
+	/** An unused table, taken before allocating a new one. */
+	protected transient PackedInts spare;
+	/**
+	 * Usage index of an automaton this one only differs from on the changed
+	 * transitions, null if none.
+	 */
+	protected transient UsageIndex usage;
+	protected transient int[] changed;
+	protected transient int changedCount;
 	protected Random random = new Random();
 
 	public static int newInstanceMin = 6;
@@ -72,14 +97,14 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 			line = br.readLine();
 			this.alphabet[i] = line.split("=", 0)[1];
 		}
-		this.transitionTable = new int[numberOfNodes][];
-		for (int i = 0; i < numberOfNodes; i++) {
-			this.transitionTable[i] = new int[alphabet.length];
-			for (int j = 0; j < alphabet.length; j++) {
-				line = br.readLine();
-				this.transitionTable[i][j] = Integer.parseInt(line
-						.split("=", 0)[1]);
-			}
+		this.transitionTable = PackedInts.allocate(numberOfNodes
+				* alphabet.length, numberOfNodes - 1);
+		for (int i = 0; i < numberOfNodes * alphabet.length; i++) {
+			line = br.readLine();
+			String[] parts = line.split("=", 0);
+			// print() leaves missing transitions empty
+			this.transitionTable.set(i, parts.length < 2 ? -1 : Integer
+					.parseInt(parts[1]));
 		}
 		br.close();
 	}
@@ -90,12 +115,10 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 		this.random = other.random;
 		this.fitness = other.fitness;
 		this.numberOfNodes = other.numberOfNodes;
-		this.transitionTable = new int[numberOfNodes][];
-		for (int i = 0; i < numberOfNodes; i++) {
-			this.transitionTable[i] = new int[alphabet.length];
-			for (int j = 0; j < alphabet.length; j++)
-				this.transitionTable[i][j] = other.transitionTable[i][j];
-		}
+		// copy-on-write
+		this.transitionTable = other.transitionTable;
+		this.sharers = other.share();
+		other.copyUsage(this);
 	}
 
 	public FiniteStateAutomaton(String[] alphabet, Random random,
@@ -107,20 +130,102 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 		setChromosome(chromosome);
 	}
 
+	/**
+	 * An automaton with the given number of states, its transitions are left
+	 * for the caller to fill.
+	 */
+	protected FiniteStateAutomaton(String[] alphabet, Random random,
+			int numberOfNodes) {
+		super();
+		this.random = random;
+		this.alphabet = alphabet;
+		this.fitness = Double.NaN;
+		this.numberOfNodes = numberOfNodes;
+		this.transitionTable = PackedInts.allocate(numberOfNodes
+				* alphabet.length, numberOfNodes - 1);
+	}
+
+	/**
+	 * Re-initialize a discarded automaton to hold a given number of states,
+	 * reusing its table where possible. Transitions are left for the caller to
+	 * fill.
+	 */
+	protected void reset(String[] alphabet, Random random, int numberOfNodes) {
+		this.random = random;
+		this.fitness = Double.NaN;
+		this.lastMutationType = NOMUTATION;
+		this.usage = null;
+		if (!release()
+				|| !transitionTable.fits(numberOfNodes * alphabet.length,
+						numberOfNodes - 1))
+			this.transitionTable = newTable(numberOfNodes * alphabet.length,
+					numberOfNodes);
+		this.alphabet = alphabet;
+		this.numberOfNodes = numberOfNodes;
+	}
+
+	/**
+	 * Make sure the transition table is not shared before changing it, by
+	 * copying it if needed.
+	 */
+	protected void own() {
+		if (sharers == null || release())
+			return;
+		int length = numberOfNodes * alphabet.length;
+		PackedInts table = newTable(length, numberOfNodes);
+		transitionTable.copyTo(0, table, 0, length);
+		this.transitionTable = table;
+	}
+
+	/**
+	 * Start sharing the transition table with one more automaton.
+	 * 
+	 * @return the counter of automata using the table.
+	 */
+	private AtomicInteger share() {
+		if (sharers == null)
+			this.sharers = new AtomicInteger(1);
+		sharers.incrementAndGet();
+		return sharers;
+	}
+
+	/**
+	 * Stop sharing the transition table.
+	 * 
+	 * @return whether the table is now only used by this automaton.
+	 */
+	private boolean release() {
+		if (sharers == null)
+			return true;
+		boolean last = sharers.decrementAndGet() == 0;
+		this.sharers = null;
+		return last;
+	}
+
+	/**
+	 * A table of at least a given length for a given number of states, taken
+	 * from the spare one if it is large enough.
+	 */
+	private PackedInts newTable(int length, int numberOfNodes) {
+		PackedInts table = spare != null
+				&& spare.fits(length, numberOfNodes - 1) ? spare : PackedInts
+				.allocate(length, numberOfNodes - 1);
+		this.spare = null;
+		return table;
+	}
+
 	protected void setChromosome(int[] chromosome) {
 		int c = 0;
 		// numbers
 		this.numberOfNodes = chromosome[c];
 		c++;
-		// transition table
-		this.transitionTable = new int[numberOfNodes][];
-		for (int i = 0; i < numberOfNodes; i++) {
-			transitionTable[i] = new int[alphabet.length];
-			for (int j = 0; j < alphabet.length; j++) {
-				transitionTable[i][j] = chromosome[c];
-				c++;
-			}
-		}
+		// transition table, as is
+		release();
+		this.usage = null;
+		int length = numberOfNodes * alphabet.length;
+		this.transitionTable = PackedInts.allocate(length, numberOfNodes - 1);
+		transitionTable.set(0, chromosome, c, length);
+		c += length;
 		if (c != chromosome.length)
 			// throw new
 			// IllegalStateException("chromosome.length=="+chromosome.length+" c=="+c);
@@ -139,25 +244,214 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 	}
 
 	public int[] toChromosome() {
-		int size = chromosomeLength(numberOfNodes);
-		int[] result = new int[size];
-		int c = 0;
-		result[c] = this.numberOfNodes;
-		c++;
+		int[] result = new int[chromosomeLength(numberOfNodes)];
+		result[0] = this.numberOfNodes;
+		transitionTable.get(0, result, 1, result.length - 1);
+		return result;
+	}
+
+	public int size() {
+		return numberOfNodes;
+	}
+
+	/**
+	 * The canonical form of this automaton: states unreachable from state 0
+	 * are pruned and the rest are renumbered in breadth-first order (following
+	 * the order of the alphabet), keeping the final state last. Traversals and
+	 * language size are the same as for this automaton.
+	 * 
+	 * @param minimize
+	 *            whether to also merge equivalent states.
+	 */
+	public FiniteStateAutomaton canonicalForm(boolean minimize) {
+		int last = numberOfNodes - 1;
+
+		// reachable states
+		boolean[] reachable = new boolean[numberOfNodes];
+		int[] queue = new int[numberOfNodes];
+		int head = 0;
+		int tail = 0;
+		reachable[0] = true;
+		queue[tail++] = 0;
+		while (head < tail) {
+			int current = queue[head++];
+			for (int j = 0; j < alphabet.length; j++) {
+				int next = transitionTable.get(current * alphabet.length + j);
+				if (next != -1 && !reachable[next]) {
+					reachable[next] = true;
+					queue[tail++] = next;
+				}
+			}
+		}
+
+		// representative of each state
+		int[] representative = minimize ? equivalentStates(reachable)
+				: new int[numberOfNodes];
+		if (!minimize)
+			for (int i = 0; i < numberOfNodes; i++)
+				representative[i] = i;
+
+		// renumber in breadth-first order, the final state goes last
+		int[] newIndex = new int[numberOfNodes];
 		for (int i = 0; i < numberOfNodes; i++)
+			newIndex[i] = -1;
+		int[] order = new int[numberOfNodes];
+		head = 0;
+		tail = 0;
+		newIndex[representative[0]] = 0;
+		queue[tail++] = representative[0];
+		while (head < tail) {
+			int current = queue[head++];
+			for (int j = 0; j < alphabet.length; j++) {
+				int next = transitionTable.get(current * alphabet.length + j);
+				if (next == -1)
+					continue;
+				next = representative[next];
+				if (newIndex[next] == -1) {
+					newIndex[next] = 0;
+					queue[tail++] = next;
+				}
+			}
+		}
+		int newNumberOfNodes = 0;
+		for (int i = 0; i < tail; i++)
+			if (queue[i] != last) {
+				newIndex[queue[i]] = newNumberOfNodes;
+				order[newNumberOfNodes] = queue[i];
+				newNumberOfNodes++;
+			}
+		newIndex[last] = newNumberOfNodes;
+		order[newNumberOfNodes] = last;
+		newNumberOfNodes++;
+
+		int[] chromosome = new int[chromosomeLength(newNumberOfNodes)];
+		chromosome[0] = newNumberOfNodes;
+		int c = 1;
+		for (int i = 0; i < newNumberOfNodes; i++)
 			for (int j = 0; j < alphabet.length; j++) {
-				result[c] = transitionTable[i][j];
+				int next = reachable[order[i]] ? transitionTable.get(order[i]
+						* alphabet.length + j) : -1;
+				chromosome[c] = next == -1 ? -1
+						: newIndex[representative[next]];
 				c++;
 			}
+		FiniteStateAutomaton result = new FiniteStateAutomaton(alphabet,
+				random, chromosome);
+		result.fitness = this.fitness;
 		return result;
 	}
 
-	public int size() {
-		return numberOfNodes;
+	/**
+	 * Moore's partition refinement over the reachable states, the final state
+	 * starts on its own.
+	 * 
+	 * @return the smallest equivalent state, for each reachable state.
+	 */
+	private int[] equivalentStates(boolean[] reachable) {
+		int last = numberOfNodes - 1;
+		Scratch s = scratch.get();
+		s.ensurePartition(numberOfNodes);
+		int[] group = s.group;
+		int[] newGroup = s.newGroup;
+		int[] first = s.first;
+		int[] table = s.table;
+		int capacity = Integer.highestOneBit(numberOfNodes * 2 - 1) << 1;
+		int mask = capacity - 1;
+		for (int i = 0; i < numberOfNodes; i++)
+			group[i] = i == last ? 1 : 0;
+		int groups = reachable[last] ? 2 : 1;
+		while (true) {
+			// states with the same signature (group and group of each
+			// transition) go to the same new group, numbered by first state
+			Arrays.fill(table, 0, capacity, -1);
+			int newGroups = 0;
+			for (int i = 0; i < numberOfNodes; i++) {
+				if (!reachable[i])
+					continue;
+				int slot = signatureHash(i, group) & mask;
+				while (table[slot] != -1
+						&& !sameSignature(i, table[slot], group))
+					slot = (slot + 1) & mask;
+				if (table[slot] == -1) {
+					table[slot] = i;
+					first[newGroups] = i;
+					newGroup[i] = newGroups++;
+				} else
+					newGroup[i] = newGroup[table[slot]];
+			}
+			int[] swap = group;
+			group = newGroup;
+			newGroup = swap;
+			if (newGroups == groups)
+				break;
+			groups = newGroups;
+		}
+		int[] result = new int[numberOfNodes];
+		for (int i = 0; i < numberOfNodes; i++)
+			result[i] = reachable[i] ? first[group[i]] : i;
+		return result;
+	}
+
+	private int signatureHash(int state, int[] group) {
+		int h = group[state];
+		for (int j = 0; j < alphabet.length; j++) {
+			int next = transitionTable.get(state * alphabet.length + j);
+			h = 31 * h + (next == -1 ? -1 : group[next]);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private boolean sameSignature(int state1, int state2, int[] group) {
+		if (group[state1] != group[state2])
+			return false;
+		for (int j = 0; j < alphabet.length; j++) {
+			int next1 = transitionTable.get(state1 * alphabet.length + j);
+			int next2 = transitionTable.get(state2 * alphabet.length + j);
+			if (next1 == -1 || next2 == -1) {
+				if (next1 != next2)
+					return false;
+			} else if (group[next1] != group[next2])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A key identifying this automaton up to its canonical form: the number of
+	 * states (which is part of the fitness) followed by the chromosome of the
+	 * canonical form.
+	 */
+	public int[] canonicalKey(boolean minimize) {
+		return canonicalKey(canonicalForm(minimize));
+	}
+
+	/**
+	 * Same as canonicalKey, for an already computed canonical form.
+	 */
+	public int[] canonicalKey(FiniteStateAutomaton canonical) {
+		int[] chromosome = canonical.toChromosome();
+		int[] result = new int[1 + chromosome.length];
+		result[0] = numberOfNodes;
+		System.arraycopy(chromosome, 0, result, 1, chromosome.length);
+		return result;
 	}
 
+	/**
+	 * @return a copy of the transition table, one row per state.
+	 */
 	public int[][] getTransitionTable() {
-		return transitionTable;
+		int[][] result = new int[numberOfNodes][alphabet.length];
+		for (int i = 0; i < numberOfNodes; i++)
+			transitionTable.get(i * alphabet.length, result[i], 0,
+					alphabet.length);
+		return result;
+	}
+
+	/**
+	 * @return the target of a given state on a given symbol, -1 if none.
+	 */
+	public int transition(int state, int symbol) {
+		return transitionTable.get(state * alphabet.length + symbol);
 	}
 
 	public void print(PrintWriter pw) {
@@ -170,10 +464,10 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 			for (int j = 0; j < alphabet.length; j++) {
 				pw.print("transitionTable[" + i + "][" + j + "/ '"
 						+ alphabet[j] + "']=");
-				if (transitionTable[i][j] == -1)
+				if (transition(i, j) == -1)
 					pw.println();
 				else
-					pw.println(transitionTable[i][j]);
+					pw.println(transition(i, j));
 			}
 	}
 
@@ -187,8 +481,8 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 
 		for (int i = 0; i < numberOfNodes; i++)
 			for (int j = 0; j < alphabet.length; j++)
-				if (transitionTable[i][j] != -1)
-					pw.println("  n" + i + "->n" + transitionTable[i][j]
+				if (transition(i, j) != -1)
+					pw.println("  n" + i + "->n" + transition(i, j)
 							+ " [label=\"" + alphabet[j] + "\"]");
 		pw.println(" fitness [label=\"fitness " + fitness + "\" color=white]");
 		pw.println("}");
@@ -198,6 +492,135 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 		return new FiniteStateAutomaton(this);
 	}
 
+	/**
+	 * Same as clone, copying into a discarded automaton, if any.
+	 * 
+	 * @param reuse
+	 *            an automaton that is no longer needed, or null.
+	 */
+	public FiniteStateAutomaton copy(FiniteStateAutomaton reuse) {
+		if (reuse == null)
+			return new FiniteStateAutomaton(this);
+		// copy-on-write, keeping the old table of reuse for when it is written
+		if (reuse.release())
+			reuse.spare = reuse.transitionTable;
+		reuse.random = random;
+		reuse.fitness = fitness;
+		reuse.lastMutationType = NOMUTATION;
+		reuse.alphabet = alphabet;
+		reuse.numberOfNodes = numberOfNodes;
+		reuse.transitionTable = transitionTable;
+		reuse.sharers = share();
+		copyUsage(reuse);
+		return reuse;
+	}
+
+	/**
+	 * Set the usage index of this automaton, as it is now.
+	 */
+	public void setUsage(UsageIndex usage) {
+		this.usage = usage;
+		this.changedCount = 0;
+	}
+
+	/**
+	 * @return the usage index of an automaton this one only differs from on
+	 *         getChanged, null if none.
+	 */
+	public UsageIndex getUsage() {
+		return usage;
+	}
+
+	/**
+	 * @return the transitions changed since the usage index was built, the
+	 *         first getChangedCount are valid.
+	 */
+	public int[] getChanged() {
+		return changed;
+	}
+
+	public int getChangedCount() {
+		return changedCount;
+	}
+
+	private void copyUsage(FiniteStateAutomaton copy) {
+		copy.usage = usage;
+		if (usage == null)
+			return;
+		if (changedCount > 0) {
+			if (copy.changed == null || copy.changed.length < changedCount)
+				copy.changed = new int[changed.length];
+			System.arraycopy(changed, 0, copy.changed, 0, changedCount);
+		}
+		copy.changedCount = changedCount;
+	}
+
+	/**
+	 * Remember that a transition changed, dropping the usage index once a
+	 * quarter of them have, as then most sequences have to be walked again.
+	 */
+	private void changed(int transition) {
+		if (usage == null)
+			return;
+		if (changedCount >= Math.max(1, numberOfNodes * alphabet.length / 4)) {
+			this.usage = null;
+			return;
+		}
+		if (changed == null)
+			this.changed = new int[4];
+		else if (changed.length == changedCount)
+			this.changed = Arrays.copyOf(changed, changedCount * 2);
+		changed[changedCount++] = transition;
+	}
+
+	/**
+	 * The serialized form, with the transition table as one int array per
+	 * state, as it was before the table was flattened.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("alphabet", String[].class),
+			new ObjectStreamField("numberOfNodes", Integer.TYPE),
+			new ObjectStreamField("transitionTable", int[][].class),
+			new ObjectStreamField("random", Random.class),
+			new ObjectStreamField("fitness", Double.TYPE),
+			new ObjectStreamField("lastMutationType", Integer.TYPE) };
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("alphabet", alphabet);
+		fields.put("numberOfNodes", numberOfNodes);
+		fields.put("transitionTable", getTransitionTable());
+		fields.put("random", random);
+		fields.put("fitness", fitness);
+		fields.put("lastMutationType", lastMutationType);
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		this.alphabet = (String[]) fields.get("alphabet", null);
+		this.numberOfNodes = fields.get("numberOfNodes", 0);
+		Object table = fields.get("transitionTable", null);
+		this.transitionTable = PackedInts.allocate(numberOfNodes
+				* alphabet.length, numberOfNodes - 1);
+		if (table instanceof int[][]) {
+			int[][] rows = (int[][]) table;
+			for (int i = 0; i < numberOfNodes; i++)
+				transitionTable.set(i * alphabet.length, rows[i], 0,
+						alphabet.length);
+		} else if (table instanceof int[])
+			// the flat form, one state after the other
+			transitionTable.set(0, (int[]) table, 0, numberOfNodes
+					* alphabet.length);
+		else
+			throw new InvalidObjectException("Unexpected transition table "
+					+ table);
+		this.random = (Random) fields.get("random", null);
+		this.fitness = fields.get("fitness", 0.0);
+		this.lastMutationType = fields.get("lastMutationType", 0);
+	}
+
 	// ////// Randomizable
 	public void setRandom(Random random) {
 		this.random = random;
@@ -235,27 +658,48 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 	public void pointMutation() {
 		lastMutationType = SHUFFLE;
 
-		int[] chromosome = this.toChromosome();
+		boolean changed = false;
 		if (useTargetedMutations) {
 			int i = random.nextInt(numberOfNodes * alphabet.length);
-			_mutate(alphabet, random, chromosome, i, this.numberOfNodes);
+			changed = mutate(i);
 		} else {
+			int length = chromosomeLength(numberOfNodes);
 			for (int i = 0; i < numberOfNodes * alphabet.length; i++) {
-				if (random.nextDouble() < 1.0 / chromosome.length)
-					_mutate(alphabet, random, chromosome, i, this.numberOfNodes);
+				if (random.nextDouble() < 1.0 / length)
+					changed |= mutate(i);
 			}
 		}
+		if (changed)
+			this.fitness = Double.NaN;
 	}
 
-	protected static void _mutate(String[] alphabet, Random random,
-			int[] chromosome, int i, int numberOfN) {
-		int state = i / alphabet.length;
+	/**
+	 * Mutate a transition, in place.
+	 * 
+	 * @param i
+	 *            the transition, as state * alphabet.length + symbol.
+	 * @return whether the transition changed.
+	 */
+	protected boolean mutate(int i) {
+		int target = _mutation(random, i / alphabet.length, numberOfNodes);
+		if (transitionTable.get(i) == target)
+			return false;
+		own();
+		transitionTable.set(i, target);
+		changed(i);
+		return true;
+	}
+
+	/**
+	 * A new random target for a transition leaving a given state.
+	 */
+	protected static int _mutation(Random random, int state, int numberOfN) {
 		if (random.nextDouble() < noTransitionProbability)
-			chromosome[1 + i] = -1;
+			return -1;
 		else if (random.nextDouble() < lowerStateProbability)
-			chromosome[1 + i] = state == 0 ? 0 : random.nextInt(state);
+			return state == 0 ? 0 : random.nextInt(state);
 		else
-			chromosome[1 + i] = numberOfN - 1 - state == 0 ? state
+			return numberOfN - 1 - state == 0 ? state
 					: (state + random.nextInt(numberOfN - 1 - state));
 	}
 
@@ -292,44 +736,60 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 	 * @return a newly created instance.
 	 */
 	public Instance crossOver(Instance other, double preferThis) {
+		return crossOver(other, preferThis, null);
+	}
+
+	/**
+	 * Same as crossOver, writing the child straight into a discarded
+	 * automaton, if any.
+	 * 
+	 * @param reuse
+	 *            an automaton that is no longer needed, or null.
+	 */
+	public FiniteStateAutomaton crossOver(Instance other, double preferThis,
+			FiniteStateAutomaton reuse) {
+		FiniteStateAutomaton that = (FiniteStateAutomaton) other;
 		int newNumberOfNodes = (this.numberOfNodes + offsetMinus + random
 				.nextInt(offsetPlus - offsetMinus));
 		newNumberOfNodes = newNumberOfNodes < 1 ? 1 : newNumberOfNodes;
-		int[] chromosome = new int[chromosomeLength(newNumberOfNodes)];
-		chromosome[0] = newNumberOfNodes;
-		int[] parent1 = this.toChromosome();
-		int[] parent2 = ((FiniteStateAutomaton) other).toChromosome();
-		int childTTlength = newNumberOfNodes * alphabet.length;
-		int parent1TTlength = this.numberOfNodes * alphabet.length;
-		int parent2TTlength = ((FiniteStateAutomaton) other).numberOfNodes
-				* alphabet.length;
+		FiniteStateAutomaton child = reuse;
+		if (child == null)
+			child = new FiniteStateAutomaton(alphabet, random, newNumberOfNodes);
+		else
+			child.reset(alphabet, random, newNumberOfNodes);
+		PackedInts table = child.transitionTable;
+		int symbols = alphabet.length;
+		int childTTlength = newNumberOfNodes * symbols;
+		int parent1TTlength = this.numberOfNodes * symbols;
+		int parent2TTlength = that.numberOfNodes * symbols;
 
 		// transitions
-		int i = 1;
-		while (i < 1 + childTTlength && i < 1 + parent1TTlength
-				&& i < 1 + parent2TTlength) {
-			chromosome[i] = (random.nextDouble()
+		int i = 0;
+		while (i < childTTlength && i < parent1TTlength
+				&& i < parent2TTlength) {
+			table.set(i, (random.nextDouble()
 					* (this.getFitness() + other.getFitness()) > this
-					.getFitness() ? parent2[i] : parent1[i])
-					% newNumberOfNodes;
+					.getFitness() ? that.transitionTable.get(i)
+					: this.transitionTable.get(i))
+					% newNumberOfNodes);
 			i++;
 		}
-		if (i < 1 + childTTlength) {
-			while (i < 1 + childTTlength && i < 1 + parent1TTlength) {
-				chromosome[i] = (parent1[i] % newNumberOfNodes);
+		if (i < childTTlength) {
+			while (i < childTTlength && i < parent1TTlength) {
+				table.set(i, this.transitionTable.get(i) % newNumberOfNodes);
 				i++;
 			}
-			while (i < 1 + childTTlength && i < 1 + parent2TTlength) {
-				chromosome[i] = (parent2[i] % newNumberOfNodes);
+			while (i < childTTlength && i < parent2TTlength) {
+				table.set(i, that.transitionTable.get(i) % newNumberOfNodes);
 				i++;
 			}
-			while (i < 1 + childTTlength) {
-				_mutate(alphabet, random, chromosome, i - 1, newNumberOfNodes);
+			while (i < childTTlength) {
+				table.set(i, _mutation(random, i / symbols, newNumberOfNodes));
 				i++;
 			}
 		}
 
-		return new FiniteStateAutomaton(alphabet, random, chromosome);
+		return child;
 	}
 
 	/**
@@ -364,68 +824,257 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 	}
 
 	protected int traverse(int start, int[] seq, int offset, int length) {
-		if (offset == length)
-			if (start == transitionTable.length - 1)
-				return 1;
-			else
-				return 0;
-		if (this.transitionTable[start][seq[offset]] == -1)
-			return -1;
-		return traverse(this.transitionTable[start][seq[offset]], seq,
-				offset + 1, length);
+		for (int i = offset; i < length; i++) {
+			start = this.transitionTable.get(start * alphabet.length + seq[i]);
+			if (start == -1)
+				return -1;
+		}
+		return start == numberOfNodes - 1 ? 1 : 0;
 	}
 
 	/**
-	 * Removes an edge at the end of a cycle. Enforces accepting a finite
-	 * language.
+	 * Walk a sequence once, from state 0 and as far as the transitions allow.
+	 * 
+	 * @return the length of the longest prefix of seq[offset, offset + length)
+	 *         that can be traversed, shifted left by one, with the lowest bit
+	 *         set if that prefix ends in the final state (see prefixLength and
+	 *         prefixAccepted).
 	 */
-	public void removeCycles() {
-		removeCycles(0, new HashSet<Integer>());
+	public int longestPrefix(int[] seq, int offset, int length) {
+		PackedInts table = transitionTable;
+		int symbols = alphabet.length;
+		int state = 0;
+		int i = offset;
+		int end = offset + length;
+		while (i < end) {
+			int next = table.get(state * symbols + seq[i]);
+			if (next == -1)
+				break;
+			state = next;
+			i++;
+		}
+		return ((i - offset) << 1) | (state == numberOfNodes - 1 ? 1 : 0);
 	}
 
-	private void removeCycles(int current, Set<Integer> visited) {
-		visited.add(current);
-		for (int i = 0; i < alphabet.length; i++) {
-			if (this.transitionTable[current][i] == -1)
-				continue;
-			if (visited.contains(this.transitionTable[current][i])) {
-				// hey, that's a cycle!
-				this.transitionTable[current][i] = -1;
-			} else {
-				// recurse
-				removeCycles(this.transitionTable[current][i],
-						new HashSet<Integer>(visited));
+	public int longestPrefix(int[] seq) {
+		return longestPrefix(seq, 0, seq.length);
+	}
+
+	/**
+	 * Same as longestPrefix, on packed symbols.
+	 */
+	public int longestPrefix(PackedInts seq, int offset, int length) {
+		PackedInts table = transitionTable;
+		int symbols = alphabet.length;
+		int state = 0;
+		int i = offset;
+		int end = offset + length;
+		while (i < end) {
+			int next = table.get(state * symbols + seq.get(i));
+			if (next == -1)
+				break;
+			state = next;
+			i++;
+		}
+		return ((i - offset) << 1) | (state == numberOfNodes - 1 ? 1 : 0);
+	}
+
+	/**
+	 * @return the walk of sequence i of a corpus, see longestPrefix.
+	 */
+	public int longestPrefix(Corpus corpus, int i) {
+		int offset = corpus.offset(i);
+		return longestPrefix(corpus.getSymbols(), offset, corpus.length(i));
+	}
+
+	/**
+	 * @return the length of the prefix, from the value of longestPrefix.
+	 */
+	public static int prefixLength(int walk) {
+		return walk >>> 1;
+	}
+
+	/**
+	 * @return whether the prefix ends in the final state, from the value of
+	 *         longestPrefix.
+	 */
+	public static boolean prefixAccepted(int walk) {
+		return (walk & 1) != 0;
+	}
+
+	/**
+	 * Per-thread buffers for the graph searches, grown as needed.
+	 */
+	protected static class Scratch {
+		public int[] colour = new int[0];
+		public int[] count = new int[0];
+		public int[] stackState = new int[0];
+		public int[] stackSymbol = new int[0];
+
+		public void ensure(int numberOfNodes) {
+			if (colour.length < numberOfNodes) {
+				colour = new int[numberOfNodes];
+				count = new int[numberOfNodes];
+				stackState = new int[numberOfNodes];
+				stackSymbol = new int[numberOfNodes];
+			}
+		}
+
+		public int[] group = new int[0];
+		public int[] newGroup = new int[0];
+		public int[] first = new int[0];
+		public int[] table = new int[0];
+
+		public void ensurePartition(int numberOfNodes) {
+			if (group.length < numberOfNodes) {
+				group = new int[numberOfNodes];
+				newGroup = new int[numberOfNodes];
+				first = new int[numberOfNodes];
+				table = new int[Integer
+						.highestOneBit(numberOfNodes * 2 - 1) << 1];
 			}
 		}
 	}
 
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	protected static final int WHITE = 0;
+	protected static final int GRAY = 1;
+	protected static final int BLACK = 2;
+
+	/**
+	 * @return the number of paths from state 0 to the final state (not going
+	 *         through it), Integer.MAX_VALUE if there is a cycle (the
+	 *         language is infinite) or too many paths.
+	 */
 	public int languageSize() {
-		return languageSize(0, new HashSet<Integer>());
+		return languageSize(Integer.MAX_VALUE);
 	}
 
-	private int languageSize(int current, HashSet<Integer> visited) {
-		if (current == this.transitionTable.length - 1)
-			return 1; // we reached accepting state
+	/**
+	 * Count the paths from state 0 to the final state with a depth-first
+	 * search that memoizes the count of every finished state. Counts saturate
+	 * at a given bound and the search stops as soon as it is reached.
+	 * 
+	 * @param saturation
+	 *            the largest count of interest.
+	 * @return the language size, or saturation if it is at least that (or
+	 *         infinite).
+	 */
+	public int languageSize(int saturation) {
+		int last = numberOfNodes - 1;
+		if (last == 0)
+			return 1; // we start at the accepting state
+		int symbols = alphabet.length;
+		Scratch s = scratch.get();
+		s.ensure(numberOfNodes);
+		int[] colour = s.colour;
+		int[] count = s.count;
+		int[] stackState = s.stackState;
+		int[] stackSymbol = s.stackSymbol;
+		for (int i = 0; i < numberOfNodes; i++)
+			colour[i] = WHITE;
 
-		visited.add(current);
-		int result = 0;
-		for (int i = 0; i < alphabet.length; i++) {
-			if (this.transitionTable[current][i] == -1)
+		int top = 0;
+		stackState[0] = 0;
+		stackSymbol[0] = 0;
+		colour[0] = GRAY;
+		count[0] = 0;
+		while (top >= 0) {
+			int current = stackState[top];
+			int symbol = stackSymbol[top];
+			if (symbol == symbols) {
+				// all transitions counted
+				colour[current] = BLACK;
+				top--;
+				if (top >= 0) {
+					int parent = stackState[top];
+					count[parent] = add(count[parent], count[current],
+							saturation);
+					if (count[parent] == saturation)
+						return saturation;
+				}
 				continue;
-			if (visited.contains(this.transitionTable[current][i])) {
+			}
+			stackSymbol[top]++;
+			int next = transitionTable.get(current * symbols + symbol);
+			if (next == -1)
+				continue;
+			if (next == last) {
+				// we reached accepting state
+				count[current] = add(count[current], 1, saturation);
+			} else if (colour[next] == GRAY) {
 				// hey, that's a cycle!
-				return Integer.MAX_VALUE; // cycles == infinite
+				return saturation; // cycles == infinite
+			} else if (colour[next] == BLACK) {
+				count[current] = add(count[current], count[next],
+						saturation);
 			} else {
-				// recurse
-				int recurse = languageSize(this.transitionTable[current][i],
-						new HashSet<Integer>(visited));
-				if (recurse == Integer.MAX_VALUE)
-					return recurse;
-				result += recurse;
+				top++;
+				stackState[top] = next;
+				stackSymbol[top] = 0;
+				colour[next] = GRAY;
+				count[next] = 0;
+				continue;
 			}
+			if (count[current] == saturation)
+				return saturation;
 		}
+		return count[0];
+	}
 
-		return result;
+	/**
+	 * Removes an edge at the end of a cycle. Enforces accepting a finite
+	 * language. An iterative depth-first search from state 0 that drops the
+	 * transitions going back to a state on the current path.
+	 */
+	public void removeCycles() {
+		int symbols = alphabet.length;
+		Scratch s = scratch.get();
+		s.ensure(numberOfNodes);
+		int[] colour = s.colour;
+		int[] stackState = s.stackState;
+		int[] stackSymbol = s.stackSymbol;
+		for (int i = 0; i < numberOfNodes; i++)
+			colour[i] = WHITE;
+
+		int top = 0;
+		stackState[0] = 0;
+		stackSymbol[0] = 0;
+		colour[0] = GRAY;
+		while (top >= 0) {
+			int current = stackState[top];
+			int symbol = stackSymbol[top];
+			if (symbol == symbols) {
+				colour[current] = BLACK;
+				top--;
+				continue;
+			}
+			stackSymbol[top]++;
+			int next = transitionTable.get(current * symbols + symbol);
+			if (next == -1)
+				continue;
+			if (colour[next] == GRAY) {
+				// hey, that's a cycle!
+				own();
+				transitionTable.set(current * symbols + symbol, -1);
+				changed(current * symbols + symbol);
+			} else if (colour[next] == WHITE) {
+				top++;
+				stackState[top] = next;
+				stackSymbol[top] = 0;
+				colour[next] = GRAY;
+			}
+		}
+	}
+
+	private static int add(int a, int b, int saturation) {
+		long sum = (long) a + b;
+		return sum >= saturation ? saturation : (int) sum;
 	}
 
 	/**
@@ -449,13 +1098,12 @@ public class FiniteStateAutomaton implements Instance, Cloneable, Serializable {
 		public Instance newInstance() {
 			int newNumberOfNodes = (newInstanceMin + random
 					.nextInt(newInstanceMax - newInstanceMin));
-			int[] chromosome = new int[chromosomeLength(alphabet,
-					newNumberOfNodes)];
-			chromosome[0] = newNumberOfNodes;
-			for (int i = 0; i < newNumberOfNodes * alphabet.length; i++) {
-				_mutate(alphabet, random, chromosome, i, newNumberOfNodes);
-			}
-			return new FiniteStateAutomaton(alphabet, random, chromosome);
+			FiniteStateAutomaton result = new FiniteStateAutomaton(alphabet,
+					random, newNumberOfNodes);
+			for (int i = 0; i < newNumberOfNodes * alphabet.length; i++)
+				result.transitionTable.set(i, _mutation(random, i
+						/ alphabet.length, newNumberOfNodes));
+			return result;
 		}
 	}
 }
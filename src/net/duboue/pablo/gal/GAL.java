@@ -20,24 +20,54 @@
 
 package net.duboue.pablo.gal;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import net.duboue.pablo.search.FitnessComputer;
 import net.duboue.pablo.search.GeneticSearch;
 import net.duboue.pablo.search.Instance;
 import net.duboue.pablo.search.InstanceFactory;
+import net.duboue.pablo.search.RecycleBin;
 import net.duboue.pablo.util.ObjectSeq;
 
 public class GAL extends GeneticSearch {
 
 	protected transient Instance[] newInstancePool;
+	protected transient double[] fitness;
+	protected transient double[] newFitness;
 	protected transient Instance[] neighborhood;
+	protected transient int[] positions;
 	protected int side;
 
-	private double crossOverProbability;
+	protected double crossOverProbability;
+	/** Whether children that cannot replace their parent are fully scored. */
+	protected boolean lazy;
+
+	/** Instances allocated and reused in the last step. */
+	protected int allocated, reused;
+	/**
+	 * Fittest cells whose exact fitness is computed after each step, when
+	 * the fitness is approximate.
+	 */
+	protected int elites;
+
+	/**
+	 * Parts of the grid bred and replaced on their own, in parallel when
+	 * there are several.
+	 */
+	protected transient Tile[] tiles;
+	/** Runs the tiles, null to run a single tile on the calling thread. */
+	protected transient ExecutorService tileExecutor;
 
 	public GAL(FitnessComputer computer, Properties properties) {
 		super(computer, Integer.parseInt(properties.getProperty(
@@ -49,6 +79,40 @@ public class GAL extends GeneticSearch {
 				"net.duboue.pablo.gal.crossOverProbability", "0.7"));
 		this.side = Integer.parseInt(properties.getProperty(
 				"net.duboue.pablo.gal.side", "200"));
+		this.lazy = Boolean.parseBoolean(properties.getProperty(
+				"net.duboue.pablo.gal.lazyEvaluation", "false"));
+		this.elites = Integer.parseInt(properties.getProperty(
+				"net.duboue.pablo.gal.subsampleElites", "4"));
+
+		// each tile has its own random stream, so the offspring only depend
+		// on the seed and the number of tiles
+		int tileCount = Math.min(populationSize, Integer.parseInt(properties
+				.getProperty("net.duboue.pablo.gal.tiles", "0")));
+		if (tileCount > 0) {
+			SplittableRandom seeds = new SplittableRandom(Long
+					.parseLong(properties.getProperty(
+							"net.duboue.pablo.gal.seed", "1234")));
+			this.tiles = new Tile[tileCount];
+			for (int t = 0; t < tileCount; t++)
+				tiles[t] = new Tile(populationSize * t / tileCount,
+						populationSize * (t + 1) / tileCount, new Random(seeds
+								.split().nextLong()));
+			int threads = Integer.parseInt(properties.getProperty(
+					"net.duboue.pablo.gal.threads", "0"));
+			if (threads < 1)
+				threads = Runtime.getRuntime().availableProcessors();
+			this.tileExecutor = FitnessComputer.newExecutor(
+					FitnessComputer.PLATFORM, Math.min(tileCount, threads));
+		} else
+			this.tiles = new Tile[] { new Tile(0, populationSize, null) };
+	}
+
+	/**
+	 * Stop the threads running the tiles, if any.
+	 */
+	public void shutdown() {
+		if (tileExecutor != null)
+			tileExecutor.shutdown();
 	}
 
 	public void startPopulation(InstanceFactory factory, int initialMutation) {
@@ -59,21 +123,17 @@ public class GAL extends GeneticSearch {
 		// create the initial pool by generating them at random
 		this.instancePool = new Instance[populationSize];
 		this.newInstancePool = new Instance[populationSize];
+		this.fitness = new double[populationSize];
+		this.newFitness = new double[populationSize];
 		this.neighborhood = new Instance[9];
+		this.positions = new int[9];
 		for (int i = 0; i < instancePool.length; i++)
 			instancePool[i] = factory.newInstance();
 
 		// compute the fitness of all of them
-		computeFitness(0, populationSize);
+		computer.evaluate(instancePool, 0, populationSize, fitness);
 
-		// best fitness
-		bestInstance = instancePool[1];
-		bestFitness = bestInstance.getFitness();
-		for (int i = 1; i < instancePool.length; i++)
-			if (instancePool[i].getFitness() > bestFitness) {
-				bestFitness = instancePool[i].getFitness();
-				bestInstance = instancePool[i];
-			}
+		updateBest();
 		// dumpPopulation();
 	}
 
@@ -85,15 +145,15 @@ public class GAL extends GeneticSearch {
 			instancePool[c] = p.next();
 			c++;
 		}
-		// best fitness
-		bestInstance = instancePool[1];
-		bestFitness = bestInstance.getFitness();
-		for (int i = 1; i < instancePool.length; i++)
-			if (instancePool[i].getFitness() > bestFitness) {
-				bestFitness = instancePool[i].getFitness();
-				bestInstance = instancePool[i];
-			}
+		this.newInstancePool = new Instance[populationSize];
+		this.fitness = new double[populationSize];
+		this.newFitness = new double[populationSize];
+		this.neighborhood = new Instance[9];
+		this.positions = new int[9];
+		for (int i = 0; i < instancePool.length; i++)
+			fitness[i] = instancePool[i].getFitness();
 
+		updateBest();
 		// System.err.println(Arrays.asList(instancePool));
 	}
 
@@ -102,74 +162,270 @@ public class GAL extends GeneticSearch {
 	 */
 	@Override
 	public void step() {
-		computeFitness(0, instancePool.length);
+		allocated = 0;
+		reused = 0;
+		computer.nextGeneration();
+		if (computer.isApproximate())
+			// the fitness changed, parents are compared on the same terms
+			for (int i = 0; i < instancePool.length; i++)
+				instancePool[i].setFitness(Double.NaN);
+		computer.evaluate(instancePool, 0, instancePool.length, fitness);
 
-		for (int i = 0; i < instancePool.length; i++) {
-			Instance parent1 = instancePool[i];
+		runTiles(true);
+		// a child only matters if it reaches the fitness of its parent
+		computer.evaluate(newInstancePool, 0, newInstancePool.length,
+				newFitness, lazy ? fitness : null);
+		runTiles(false);
+		for (Tile tile : tiles) {
+			allocated += tile.allocated;
+			reused += tile.reused;
+		}
 
-			getNeighborhood(i, neighborhood);
+		updateBest();
+		// dumpPopulation();
+	}
 
-			Instance parent2 = select(neighborhood);
-			Instance child = null;
-			if (rnd.nextDouble() > crossOverProbability)
-				try {
-					child = (Instance) parent1.clone();
-				} catch (CloneNotSupportedException e) {
-					throw new IllegalStateException(e.toString());
-				}
+	/**
+	 * Breed (or replace) every tile, in parallel if there are several.
+	 */
+	protected void runTiles(final boolean breed) {
+		if (tileExecutor == null) {
+			tiles[0].random = rnd;
+			if (breed)
+				tiles[0].breed();
 			else
-				child = parent1.crossOver(parent2, 0);
-			child.pointMutation();
-			newInstancePool[i] = child;
+				tiles[0].replace();
+			return;
+		}
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final Tile tile : tiles)
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					if (breed)
+						tile.breed();
+					else
+						tile.replace();
+					return null;
+				}
+			});
+		try {
+			for (Future<Object> f : tileExecutor.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * A range of cells of the grid with its own random stream, neighborhood
+	 * buffers, counters and discarded instances, so tiles can be bred and
+	 * replaced at the same time.
+	 */
+	protected class Tile {
+		public int from;
+		public int to;
+		public Random random;
+		public Instance[] neighborhood = new Instance[9];
+		public int[] positions = new int[9];
+		/** Instances allocated and reused in the last step. */
+		public int allocated, reused;
+		/** Instances that lost their cell in this tile. */
+		public RecycleBin<FiniteStateAutomaton> recycled;
+
+		public Tile(int from, int to, Random random) {
+			this.from = from;
+			this.to = to;
+			this.random = random;
+			this.recycled = new RecycleBin<FiniteStateAutomaton>(to - from);
+		}
+
+		/**
+		 * Generate the children of the cells of the tile. Parents in other
+		 * tiles are only read.
+		 */
+		public void breed() {
+			allocated = 0;
+			reused = 0;
+			for (int i = from; i < to; i++) {
+				Instance parent1 = instancePool[i];
+				// the cross-over and mutations draw from the parent's stream
+				if (tileExecutor != null)
+					parent1.setRandom(random);
+
+				getNeighborhood(i, positions, neighborhood);
+
+				Instance parent2 = select(neighborhood);
+				Instance child = GAL.this.breed(this, parent1, parent2, random
+						.nextDouble() <= crossOverProbability);
+				child.pointMutation();
+				newInstancePool[i] = child;
+			}
 		}
-		Instance[] temp = instancePool;
-		instancePool = newInstancePool;
-		computeFitness(0, instancePool.length);
-
-		// compare and set
-		instancePool = temp;
-		for (int i = 0; i < instancePool.length; i++) {
-			if (instancePool[i].getFitness() <= newInstancePool[i].getFitness())
-				instancePool[i] = newInstancePool[i]; // replacement
-			newInstancePool[i] = null;
+
+		/**
+		 * Compare and set, the losers are reused for the next generation.
+		 */
+		public void replace() {
+			for (int i = from; i < to; i++) {
+				if (fitness[i] <= newFitness[i]) {
+					recycle(this, instancePool[i]);
+					instancePool[i] = newInstancePool[i]; // replacement
+					fitness[i] = newFitness[i];
+				} else
+					recycle(this, newInstancePool[i]);
+				newInstancePool[i] = null;
+			}
 		}
-		System.gc();
+	}
+
+	/**
+	 * A child, either a copy of parent1 or its cross-over with parent2,
+	 * written into a discarded automaton when there is one.
+	 */
+	protected Instance breed(Tile tile, Instance parent1, Instance parent2,
+			boolean crossOver) {
+		if (!(parent1 instanceof FiniteStateAutomaton))
+			try {
+				tile.allocated++;
+				return crossOver ? parent1.crossOver(parent2, 0)
+						: (Instance) parent1.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalStateException(e.toString());
+			}
 
-		// best fitness
-		bestInstance = instancePool[1];
-		bestFitness = bestInstance.getFitness();
+		FiniteStateAutomaton parent = (FiniteStateAutomaton) parent1;
+		FiniteStateAutomaton reuse = tile.recycled.take();
+		if (reuse == null)
+			tile.allocated++;
+		else
+			tile.reused++;
+		return crossOver ? parent.crossOver(parent2, 0, reuse) : parent
+				.copy(reuse);
+	}
+
+	/**
+	 * Keep an instance that lost its cell to be reused by its tile. The best
+	 * instance is never reused, as it is handed out.
+	 */
+	protected void recycle(Tile tile, Instance instance) {
+		if (instance instanceof FiniteStateAutomaton && instance != bestInstance)
+			tile.recycled.recycle((FiniteStateAutomaton) instance);
+	}
+
+	/**
+	 * @return the number of instances allocated in the last step.
+	 */
+	public int getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * @return the number of discarded instances reused in the last step.
+	 */
+	public int getReused() {
+		return reused;
+	}
+
+	/**
+	 * Find the best instance in the population. When the fitness is
+	 * approximate, the exact fitness of the fittest cells is computed and the
+	 * best instance is the best one found so far.
+	 */
+	protected void updateBest() {
+		if (computer.isApproximate()) {
+			for (int i : fittest(elites)) {
+				Instance candidate = get(i);
+				double exact = computer.exactFitness(candidate);
+				if (bestInstance == null || exact > bestFitness) {
+					bestInstance = candidate;
+					bestFitness = exact;
+				}
+			}
+			return;
+		}
+		int best = 1;
 		for (int i = 1; i < instancePool.length; i++)
-			if (instancePool[i].getFitness() > bestFitness) {
-				bestFitness = instancePool[i].getFitness();
-				bestInstance = instancePool[i];
+			if (fitness[i] > fitness[best])
+				best = i;
+		bestInstance = instancePool[best];
+		bestFitness = fitness[best];
+	}
+
+	/**
+	 * @return the positions of the count cells with the highest fitness.
+	 */
+	protected int[] fittest(int count) {
+		count = Math.max(1, Math.min(count, populationSize));
+		int[] result = new int[count];
+		int found = 0;
+		for (int i = 0; i < populationSize; i++) {
+			if (found == count && !(fitness[i] > fitness[result[count - 1]]))
+				continue;
+			// insert, keeping them sorted by decreasing fitness
+			int j = found < count ? found++ : count - 1;
+			while (j > 0 && fitness[i] > fitness[result[j - 1]]) {
+				result[j] = result[j - 1];
+				j--;
 			}
-		// dumpPopulation();
+			result[j] = i;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the instance at a given position.
+	 */
+	public Instance get(int i) {
+		return instancePool[i];
 	}
 
 	protected void getNeighborhood(int i, Instance[] neighborhood) {
+		getNeighborhood(i, this.positions, neighborhood);
+	}
+
+	/**
+	 * Same as getNeighborhood, using a given buffer for the positions.
+	 */
+	protected void getNeighborhood(int i, int[] positions,
+			Instance[] neighborhood) {
+		getNeighborhood(i, positions);
+		for (int c = 0; c < positions.length; c++)
+			neighborhood[c] = instancePool[positions[c]];
+	}
+
+	/**
+	 * The positions of the cell i and its eight neighbours on the (toroidal)
+	 * grid, the cell itself first.
+	 */
+	protected void getNeighborhood(int i, int[] neighborhood) {
 		int c = 0;
 		int x = i / side;
 		int y = i % side;
-		neighborhood[c] = instancePool[i];
+		neighborhood[c] = i;
 		c++;
-		neighborhood[c] = instancePool[x * side + (y + 1) % side];
+		neighborhood[c] = x * side + (y + 1) % side;
 		c++;
-		neighborhood[c] = instancePool[x * side + (side + y - 1) % side];
+		neighborhood[c] = x * side + (side + y - 1) % side;
 		c++;
-		neighborhood[c] = instancePool[((x + 1) % side) * side + y];
+		neighborhood[c] = ((x + 1) % side) * side + y;
 		c++;
-		neighborhood[c] = instancePool[((x + 1) % side) * side + (y + 1) % side];
+		neighborhood[c] = ((x + 1) % side) * side + (y + 1) % side;
 		c++;
-		neighborhood[c] = instancePool[((x + 1) % side) * side + (side + y - 1)
-				% side];
+		neighborhood[c] = ((x + 1) % side) * side + (side + y - 1) % side;
 		c++;
-		neighborhood[c] = instancePool[((side + x - 1) % side) * side + y];
+		neighborhood[c] = ((side + x - 1) % side) * side + y;
 		c++;
-		neighborhood[c] = instancePool[((side + x - 1) % side) * side + (y + 1)
-				% side];
+		neighborhood[c] = ((side + x - 1) % side) * side + (y + 1) % side;
 		c++;
-		neighborhood[c] = instancePool[((side + x - 1) % side) * side
-				+ (side + y - 1) % side];
+		neighborhood[c] = ((side + x - 1) % side) * side + (side + y - 1)
+				% side;
 		c++;
 	}
 
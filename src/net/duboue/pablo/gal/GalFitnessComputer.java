@@ -21,13 +21,21 @@
 package net.duboue.pablo.gal;
 
 import java.util.Properties;
+import java.util.Random;
 
+import net.duboue.pablo.search.FitnessBatch;
+import net.duboue.pablo.search.FitnessCache;
 import net.duboue.pablo.search.FitnessComputer;
 import net.duboue.pablo.search.Instance;
+import net.duboue.pablo.util.IntSeq;
+import net.duboue.pablo.util.PackedInts;
 
 public class GalFitnessComputer extends FitnessComputer {
 
-	private int[][] sequences;
+	/** The distinct training sequences, weighted by how often they appear. */
+	private Corpus full;
+	/** The sequences the consistency is computed on, see subsample. */
+	private Corpus corpus;
 
 	private double weightConsistency;
 	private double weightGeneralization;
@@ -42,10 +50,50 @@ public class GalFitnessComputer extends FitnessComputer {
 
 	private float limit;
 	private int targetLanguageSize;
+	/** Language sizes are counted up to this, 0 to count them exactly. */
+	private int languageSizeCap;
+
+	private FitnessCache cache;
+	private PrefixTrie trie;
+	private PrefixTrie fullTrie;
+	/** Sequences scored in each generation, null to score all of them. */
+	private Subsample subsample;
+	/** Whether automata keep a UsageIndex, for incremental evaluation. */
+	private boolean usageIndex;
+	/** Automata evaluated together, 0 to evaluate them one at a time. */
+	private int blockSize;
+	/** Whether blocks are walked with vector instructions. */
+	private boolean vector;
+	private ThreadLocal<Block> blocks;
+	private boolean canonical;
+	private boolean minimize;
 
 	public GalFitnessComputer(int[][] sequences, Properties properties) {
-		super();
-		this.sequences = sequences;
+		this(sequences, null, properties);
+	}
+
+	/**
+	 * @param sequences
+	 *            the distinct training sequences.
+	 * @param weights
+	 *            how many times each sequence appears in the training data,
+	 *            null if they all appear once.
+	 */
+	public GalFitnessComputer(int[][] sequences, int[] weights,
+			Properties properties) {
+		this(new Corpus(null, sequences, weights), properties);
+	}
+
+	/**
+	 * @param corpus
+	 *            the distinct training sequences, with their weights.
+	 */
+	public GalFitnessComputer(Corpus corpus, Properties properties) {
+		super(properties.getProperty("net.duboue.pablo.gal.executor",
+				FORKJOIN), Integer.parseInt(properties.getProperty(
+				"net.duboue.pablo.gal.threads", "0")));
+		this.full = corpus;
+		this.corpus = corpus;
 
 		this.weightConsistency = Double.parseDouble(properties.getProperty(
 				"net.duboue.pablo.gal.weightConsistency", "0.33"));
@@ -53,7 +101,8 @@ public class GalFitnessComputer extends FitnessComputer {
 				"net.duboue.pablo.gal.weightSize", "0.33"));
 		this.weightGeneralization = Double.parseDouble(properties.getProperty(
 				"net.duboue.pablo.gal.weightGeneralization", "0.33"));
-		this.targetLanguageSize = (int) (sequences.length * Double
+		// relative to the training size, repeats included
+		this.targetLanguageSize = (int) (corpus.getTotalWeight() * Double
 				.parseDouble(properties.getProperty(
 						"net.duboue.pablo.gal.targetSizeMultiplier", "2.0")));
 		this.limit = Float.parseFloat(properties.getProperty(
@@ -70,6 +119,114 @@ public class GalFitnessComputer extends FitnessComputer {
 				"net.duboue.pablo.gal.sizeMax", "20"));
 
 		this.fLimit = max / (1.0 + m1 * limit * limit);
+
+		int margin = Integer.parseInt(properties.getProperty(
+				"net.duboue.pablo.gal.languageSizeMargin", "0"));
+		if (margin > 0)
+			this.languageSizeCap = (int) Math.min(Integer.MAX_VALUE,
+					targetLanguageSize + (long) Math.ceil(limit) + margin);
+
+		if (Boolean.parseBoolean(properties.getProperty(
+				"net.duboue.pablo.gal.prefixTrie", "false")))
+			this.trie = corpus.getTrie() != null ? corpus.getTrie()
+					: new PrefixTrie(corpus);
+		this.fullTrie = trie;
+
+		this.usageIndex = Boolean.parseBoolean(properties.getProperty(
+				"net.duboue.pablo.gal.usageIndex", "false"));
+
+		this.canonical = Boolean.parseBoolean(properties.getProperty(
+				"net.duboue.pablo.gal.canonicalForm", "false"));
+		this.minimize = Boolean.parseBoolean(properties.getProperty(
+				"net.duboue.pablo.gal.canonicalMinimize", "false"));
+
+		if ("block".equals(properties.getProperty(
+				"net.duboue.pablo.gal.evaluation", "instance"))) {
+			this.blockSize = Integer.parseInt(properties.getProperty(
+					"net.duboue.pablo.gal.blockSize", "64"));
+			this.vector = Boolean.parseBoolean(properties.getProperty(
+					"net.duboue.pablo.gal.vector", "false"));
+			this.blocks = new ThreadLocal<Block>() {
+				protected Block initialValue() {
+					return new Block();
+				}
+			};
+		}
+
+		int cacheSize = Integer.parseInt(properties.getProperty(
+				"net.duboue.pablo.gal.cacheSize", "0"));
+		if (cacheSize > 0)
+			this.cache = new FitnessCache(cacheSize, parallelism);
+
+		int subsampleSize = Integer.parseInt(properties.getProperty(
+				"net.duboue.pablo.gal.subsample", "0"));
+		if (subsampleSize > 0 && subsampleSize < corpus.size()) {
+			if (usageIndex) {
+				System.err.println("** warning, the usage index does not "
+						+ "work on subsamples, disabling it");
+				usageIndex = false;
+			}
+			this.subsample = new Subsample(corpus, subsampleSize, new Random(
+					Long.parseLong(properties.getProperty(
+							"net.duboue.pablo.gal.seed", "1234"))));
+			nextGeneration();
+		}
+	}
+
+	/**
+	 * @return whether only a subsample of the sequences is scored.
+	 */
+	public boolean isApproximate() {
+		return subsample != null;
+	}
+
+	/**
+	 * @return the subsample scored, null if all sequences are.
+	 */
+	public Subsample getSubsample() {
+		return subsample;
+	}
+
+	/**
+	 * Move on to the next subsample, if subsampling. The cache is cleared as
+	 * its values were computed on the previous one.
+	 */
+	public void nextGeneration() {
+		if (subsample == null)
+			return;
+		corpus = subsample.next();
+		if (fullTrie != null)
+			trie = new PrefixTrie(corpus);
+		if (cache != null)
+			cache.clear();
+	}
+
+	/**
+	 * The fitness of an automaton on all the sequences, neither cached nor
+	 * set on the automaton. When subsampling, how far it is from the fitness
+	 * on the subsample is recorded.
+	 */
+	public double exactFitness(Instance instance) {
+		if (subsample == null)
+			return super.exactFitness(instance);
+		FiniteStateAutomaton fsa = (FiniteStateAutomaton) instance;
+		FiniteStateAutomaton evaluated = prepare(fsa);
+		double fitness = consistencyFitness(full, fullTrie, evaluated, false,
+				Double.NEGATIVE_INFINITY)
+				* weightConsistency
+				+ sizeFitness(fsa, maxSize)
+				* weightSize
+				+ generalizationFitness(evaluated, targetLanguageSize, limit)
+				* weightGeneralization;
+		subsample.compare(instance.getFitness(), fitness);
+		return fitness;
+	}
+
+	/**
+	 * @return the fitness cache, null if caching is disabled.
+	 */
+	public FitnessCache getCache() {
+		return cache;
 	}
 
 	public double debug(Instance instance) {
@@ -77,20 +234,200 @@ public class GalFitnessComputer extends FitnessComputer {
 	}
 
 	protected double compute(Instance instance) {
-		return compute(instance, false);
+		return compute(instance, false, Double.NaN);
+	}
+
+	/**
+	 * Compute the size and generalization fitness first, then stop walking the
+	 * sequences as soon as even a perfect score on the rest of them would not
+	 * reach the bound. Such automata get -Infinity, which is neither cached
+	 * nor set on the automaton, so its fitness is computed again under any
+	 * later bound.
+	 */
+	protected double compute(Instance instance, double bound) {
+		return compute(instance, false, bound);
 	}
 
 	protected double compute(Instance instance, boolean debug) {
+		return compute(instance, debug, Double.NaN);
+	}
+
+	protected double compute(Instance instance, boolean debug, double bound) {
 		FiniteStateAutomaton fsa = (FiniteStateAutomaton) instance;
-		if (!debug && !Double.isNaN(instance.getFitness()))
+		if (!debug && !Double.isNaN(instance.getFitness())) {
+			// an automaton scored before is still in the population, index it
+			// so its copies only walk again the sequences they change
+			if (usageIndex && fsa.getUsage() == null)
+				fsa.setUsage(new UsageIndex(fsa, corpus));
 			return instance.getFitness();
+		}
 
-		fsa.removeCycles();
+		FiniteStateAutomaton evaluated = prepare(fsa);
+		IntSeq key = debug ? null : cacheKey(fsa, evaluated);
+		if (key != null) {
+			double cached = cache.get(key);
+			if (!Double.isNaN(cached)) {
+				instance.setFitness(cached);
+				return cached;
+			}
+		}
+
+		// what is shown is computed on all the sequences
+		Corpus corpus = debug ? full : this.corpus;
+		PrefixTrie trie = debug ? fullTrie : this.trie;
 
-		double consistencyFitness = consistencyFitness(sequences, fsa, debug);
 		double sizeFitness = sizeFitness(fsa, maxSize);
-		double generalizationFitness = generalizationFitness(fsa,
+		double generalizationFitness = generalizationFitness(evaluated,
 				targetLanguageSize, limit);
+
+		// smallest sum of the sequence scores that reaches the bound
+		double minimum = Double.NEGATIVE_INFINITY;
+		if (!Double.isNaN(bound) && weightConsistency > 0) {
+			double rest = sizeFitness * weightSize + generalizationFitness
+					* weightGeneralization;
+			if (Double.isNaN(rest))
+				// undefined fitness, whatever the consistency
+				return finish(fsa, key, Double.NaN, sizeFitness,
+						generalizationFitness, debug);
+			// leave room for rounding
+			double margin = 1e-9 * Math.max(1.0, Math.abs(bound));
+			minimum = (bound - margin - rest) / weightConsistency
+					* corpus.getTotalWeight();
+		}
+
+		// consistency is the same on the canonical form, but the usage index
+		// belongs to the original automaton
+		double consistencyFitness = consistencyFitness(corpus, trie,
+				usageIndex ? fsa : evaluated, debug, minimum);
+		if (consistencyFitness == Double.NEGATIVE_INFINITY)
+			return consistencyFitness;
+		return finish(fsa, key, consistencyFitness, sizeFitness,
+				generalizationFitness, debug);
+	}
+
+	/**
+	 * Evaluate a range of a batch in blocks, advancing all the automata of a
+	 * block over each sequence together.
+	 */
+	protected void compute(FitnessBatch batch, int from, int to) {
+		if (blockSize < 1) {
+			super.compute(batch, from, to);
+			return;
+		}
+		Block block = blocks.get();
+		block.clear();
+		Instance[] pool = batch.getPool();
+		for (int i = from; i < to; i++) {
+			FiniteStateAutomaton fsa = (FiniteStateAutomaton) pool[i];
+			if (!Double.isNaN(fsa.getFitness())) {
+				batch.set(i, fsa.getFitness());
+				continue;
+			}
+			FiniteStateAutomaton evaluated = prepare(fsa);
+			IntSeq key = cacheKey(fsa, evaluated);
+			if (key != null) {
+				double cached = cache.get(key);
+				if (!Double.isNaN(cached)) {
+					batch.set(i, cached);
+					continue;
+				}
+			}
+			block.add(i, fsa, evaluated, key);
+			if (block.evaluator.size() == blockSize)
+				flush(batch, block);
+		}
+		flush(batch, block);
+	}
+
+	private void flush(FitnessBatch batch, Block block) {
+		PopulationEvaluator evaluator = block.evaluator;
+		if (evaluator.size() == 0)
+			return;
+		Corpus corpus = this.corpus;
+		evaluator.consistency(corpus);
+		for (int lane = 0; lane < evaluator.size(); lane++)
+			batch.set(block.positions[lane], finish(block.originals[lane],
+					evaluator.getAutomaton(lane), block.keys[lane], evaluator
+							.getConsistency(lane)
+							/ corpus.getTotalWeight(), false));
+		block.clear();
+	}
+
+	/**
+	 * The automata of a block waiting to be evaluated, where they come from
+	 * and their cache keys.
+	 */
+	protected class Block {
+		public PopulationEvaluator evaluator;
+		public int[] positions;
+		public FiniteStateAutomaton[] originals;
+		public IntSeq[] keys;
+
+		public Block() {
+			this.evaluator = PopulationEvaluator.newInstance(blockSize, vector);
+			this.positions = new int[blockSize];
+			this.originals = new FiniteStateAutomaton[blockSize];
+			this.keys = new IntSeq[blockSize];
+		}
+
+		public void add(int position, FiniteStateAutomaton original,
+				FiniteStateAutomaton evaluated, IntSeq key) {
+			int lane = evaluator.add(evaluated);
+			positions[lane] = position;
+			originals[lane] = original;
+			keys[lane] = key;
+		}
+
+		public void clear() {
+			for (int lane = 0; lane < evaluator.size(); lane++) {
+				originals[lane] = null;
+				keys[lane] = null;
+			}
+			evaluator.clear();
+		}
+	}
+
+	/**
+	 * Remove the cycles of an automaton before evaluating it.
+	 * 
+	 * @return the automaton to evaluate: its (smaller) canonical form if
+	 *         enabled, size is always taken from the original automaton.
+	 */
+	protected FiniteStateAutomaton prepare(FiniteStateAutomaton fsa) {
+		fsa.removeCycles();
+		return canonical ? fsa.canonicalForm(minimize) : fsa;
+	}
+
+	/**
+	 * @return the key of an automaton in the fitness cache, null if caching
+	 *         is disabled.
+	 */
+	protected IntSeq cacheKey(FiniteStateAutomaton fsa,
+			FiniteStateAutomaton evaluated) {
+		if (cache == null)
+			return null;
+		return new IntSeq(canonical ? fsa.canonicalKey(evaluated) : fsa
+				.toChromosome());
+	}
+
+	/**
+	 * Add the cheaper fitness components to the consistency, then record the
+	 * fitness of the automaton.
+	 */
+	protected double finish(FiniteStateAutomaton fsa,
+			FiniteStateAutomaton evaluated, IntSeq key,
+			double consistencyFitness, boolean debug) {
+		return finish(fsa, key, consistencyFitness, sizeFitness(fsa, maxSize),
+				generalizationFitness(evaluated, targetLanguageSize, limit),
+				debug);
+	}
+
+	/**
+	 * Same as finish, with every fitness component already computed.
+	 */
+	protected double finish(FiniteStateAutomaton fsa, IntSeq key,
+			double consistencyFitness, double sizeFitness,
+			double generalizationFitness, boolean debug) {
 		double fitness = consistencyFitness * weightConsistency + sizeFitness
 				* weightSize + generalizationFitness * weightGeneralization;
 		if (debug) {
@@ -102,36 +439,68 @@ public class GalFitnessComputer extends FitnessComputer {
 					+ " / " + targetLanguageSize + " ]");
 		}
 
-		instance.setFitness(fitness);
+		fsa.setFitness(fitness);
+		if (key != null)
+			cache.put(key, fitness);
 
 		return fitness;
 	}
 
-	private double consistencyFitness(int[][] sequences,
-			FiniteStateAutomaton fsa, boolean debug) {
-		// recognize prefixes on the sequences
+	/**
+	 * @param minimum
+	 *            stop, returning -Infinity, once the sum of the sequence
+	 *            scores cannot reach it.
+	 */
+	private double consistencyFitness(Corpus corpus, PrefixTrie trie,
+			FiniteStateAutomaton fsa, boolean debug, double minimum) {
+		int totalWeight = corpus.getTotalWeight();
+		if (trie != null && !usageIndex) {
+			int[] fully = new int[1];
+			double result = trie.consistency(fsa, fully, minimum);
+			if (result == Double.NEGATIVE_INFINITY)
+				return result;
+			if (debug)
+				System.out.println("\t\tFully recognized: " + fully[0]);
+			return result / totalWeight;
+		}
+
+		// recognize prefixes on the sequences, only walking again the ones
+		// that read a transition changed since the usage index was built
+		// (automata without one, most of them losing children, walk them all)
+		int[] walks = null;
+		if (usageIndex && fsa.getUsage() != null)
+			walks = fsa.getUsage().walks(fsa, corpus, fsa.getChanged(),
+					fsa.getChangedCount());
+
 		double result = 0.0;
 
 		int fully = 0;
-		for (int i = 0; i < sequences.length; i++) {
-			int[] seq = sequences[i];
-			int l = seq.length;
-			int ret = 0;
-			do {
-				ret = fsa.traverse(seq, l);
-				l--;
-			} while (l > 0 && ret < 0);
-			if (ret >= 0) {
-				result += (l + 1.0) / seq.length
-						- (ret == 0 ? 1.0 / (2.0 * seq.length) : 0);
-				if (ret > 0)
-					fully++;
+		// each sequence scores at most 1
+		double remaining = totalWeight;
+		PackedInts symbols = corpus.getSymbols();
+		for (int i = 0; i < corpus.size(); i++) {
+			if (result + remaining < minimum)
+				return Double.NEGATIVE_INFINITY;
+			int offset = corpus.offset(i);
+			int length = corpus.offset(i + 1) - offset;
+			int walk = walks != null ? walks[i] : fsa.longestPrefix(symbols,
+					offset, length);
+			int l = FiniteStateAutomaton.prefixLength(walk);
+			int weight = corpus.weight(i);
+			remaining -= weight;
+			if (l > 0) {
+				boolean accepted = FiniteStateAutomaton.prefixAccepted(walk);
+				result += weight
+						* ((double) l / length - (accepted ? 0
+								: 1.0 / (2.0 * length)));
+				if (accepted)
+					fully += weight;
 			}
 		}
 		if (debug)
 			System.out.println("\t\tFully recognized: " + fully);
 
-		return result / sequences.length;
+		return result / totalWeight;
 	}
 
 	private double sizeFitness(FiniteStateAutomaton fsa, double maxSize) {
@@ -141,7 +510,8 @@ public class GalFitnessComputer extends FitnessComputer {
 
 	private double generalizationFitness(FiniteStateAutomaton fsa,
 			int targetLanguageSize, float limit) {
-		int actual = fsa.languageSize();
+		int actual = languageSizeCap > 0 ? fsa.languageSize(languageSizeCap)
+				: fsa.languageSize();
 		int diff = targetLanguageSize - actual;
 		int absDiff = Math.abs(diff);
 		double result = absDiff <= limit ? max / (1.0 + m1 * diff * diff)
@@ -20,25 +20,18 @@
 
 package net.duboue.pablo.gal;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
-import java.util.Set;
 
 import net.duboue.pablo.search.FitnessComputer;
 import net.duboue.pablo.search.InstanceFactory;
+import net.duboue.pablo.util.Allocations;
 
 public class LearnFSA {
 	public static void main(String[] args) throws IOException {
@@ -52,7 +45,9 @@ public class LearnFSA {
 			System.err
 					.println("Must specify the training sequences file and a properties file.\n"
 							+ "The training file has one sequence per line, the alphabet "
-							+ "will be induced by tokens separated by whitespaces.\n");
+							+ "will be induced by tokens separated by whitespaces. It can also be\n"
+							+ "a corpus compiled with net.duboue.pablo.gal.CorpusFile, with\n"
+							+ "net.duboue.pablo.gal.trainingFormat = compiled.\n");
 			System.exit(-1);
 		}
 		String trainingFile = args[0];
@@ -70,54 +65,40 @@ public class LearnFSA {
 		dumpBestPerGeneration = Boolean.parseBoolean(properties.getProperty(
 				"net.duboue.pablo.gal.dumpBestPerGeneration", "false"));
 
-		// read sequences
-		List<String[]> rawSequences = new ArrayList<String[]>();
-		BufferedReader br = new BufferedReader(new FileReader(new File(
-				trainingFile)));
-		String line = br.readLine();
-		while (line != null) {
-			rawSequences.add(line.split("\\s+"));
-			line = br.readLine();
-		}
-
-		// transform sequences into numbers
-		Set<String> alphabetSet = new HashSet<String>();
-		for (String[] seq : rawSequences)
-			for (String w : seq)
-				alphabetSet.add(w);
-		Map<String, Integer> alphabetMap = new HashMap<String, Integer>();
-		String[] alphabet = new String[alphabetSet.size()];
-		{
-			int c = 0;
-			for (String w : alphabetSet) {
-				alphabet[c] = w;
-				alphabetMap.put(w, c);
-				c++;
-			}
-		}
-		int[][] sequences = new int[rawSequences.size()][];
-		for (int i = 0; i < rawSequences.size(); i++) {
-			String[] seq = rawSequences.get(i);
-			sequences[i] = new int[seq.length];
-			for (int j = 0; j < seq.length; j++)
-				sequences[i][j] = alphabetMap.get(seq[j]);
+		// read sequences, collapsing repeated ones and keeping how many times
+		// they appear, unless already compiled (see CorpusFile)
+		Corpus corpus;
+		if ("compiled".equals(properties.getProperty(
+				"net.duboue.pablo.gal.trainingFormat", "text")))
+			corpus = CorpusFile.map(new File(trainingFile));
+		else {
+			if (CorpusFile.isCorpusFile(new File(trainingFile)))
+				System.err.println("** warning, " + trainingFile
+						+ " looks like a compiled corpus, it is read as text"
+						+ " unless net.duboue.pablo.gal.trainingFormat"
+						+ " = compiled");
+			corpus = CorpusReader.read(new File(trainingFile),
+					Integer.parseInt(properties.getProperty(
+							"net.duboue.pablo.gal.threads", "0"))).distinct();
 		}
+		String[] alphabet = corpus.getAlphabet();
+		System.out.println("Training sequences: " + corpus.getTotalWeight()
+				+ ", distinct: " + corpus.size());
 
 		Random random = new Random(Integer.parseInt(properties.getProperty(
 				"net.duboue.pablo.gal.seed", "1234")));
 
 		InstanceFactory factory = new FiniteStateAutomaton.Factory(alphabet,
 				random, properties);
-		FitnessComputer computer = new GalFitnessComputer(sequences, properties);
-		Thread[] computerThreads = new Thread[Runtime.getRuntime()
-				.availableProcessors()];
-		for (int i = 0; i < computerThreads.length; i++) {
-			Thread computerThread = new Thread(computer);
-			computerThread.start();
-			computerThreads[i] = computerThread;
-		}
+		FitnessComputer computer = new GalFitnessComputer(corpus,
+				properties);
 
-		GAL gal = new GAL(computer, properties);
+		GAL gal;
+		if ("offheap".equals(properties.getProperty(
+				"net.duboue.pablo.gal.population", "heap")))
+			gal = new OffHeapGAL(computer, properties);
+		else
+			gal = new GAL(computer, properties);
 
 		gal.setRandom(random);
 		System.out.print("Starting population...");
@@ -140,16 +121,27 @@ public class LearnFSA {
 				((FiniteStateAutomaton) gal.getBestInstance()).printAsDot(pw);
 				pw.close();
 				((GalFitnessComputer) computer).debug(gal.getBestInstance());
+				if (((GalFitnessComputer) computer).getCache() != null)
+					System.out.println("\t"
+							+ ((GalFitnessComputer) computer).getCache());
+				if (((GalFitnessComputer) computer).getSubsample() != null)
+					System.out.println("\t"
+							+ ((GalFitnessComputer) computer).getSubsample());
 
 			} catch (IOException e) {
 				System.err.println(e);
 			}
+			long bytes = Allocations.allocatedBytes();
 			gal.step();
+			if (bytes >= 0)
+				bytes = Allocations.allocatedBytes() - bytes;
+			System.out.println("\tAllocated: " + gal.getAllocated()
+					+ " instances (" + gal.getReused() + " reused)"
+					+ (bytes >= 0 ? ", " + bytes + " bytes" : ""));
 			// System.out.println();
 			// gal.dumpPopulation();
 		}
-		FitnessComputer.stopComputers();
-		for (Thread computerThread : computerThreads)
-			computerThread.interrupt();
+		gal.shutdown();
+		computer.shutdown();
 	}
 }
@@ -0,0 +1,288 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.gal;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+
+import net.duboue.pablo.search.FitnessComputer;
+import net.duboue.pablo.search.Instance;
+import net.duboue.pablo.search.InstanceFactory;
+
+/**
+ * GAL over a population kept off the Java heap (see OffHeapPopulation). Only a
+ * window of reusable automata lives on the heap: offspring are generated into
+ * it, evaluated and written to the next generation one window at a time.
+ * Fitness is kept in plain arrays. Offspring with more states than a slot
+ * holds (net.duboue.pablo.gal.maxNodes, by default sizeMax, beyond which the
+ * size fitness is undefined anyway) are discarded.
+ */
+public class OffHeapGAL extends GAL {
+
+	protected transient OffHeapPopulation population;
+	/** Reusable automata the offspring are generated into. */
+	protected transient FiniteStateAutomaton[] window;
+	protected transient double[] windowFitness;
+	protected transient double[] windowBounds;
+	/** Reusable automata the parents are loaded into. */
+	protected transient FiniteStateAutomaton parent1, parent2;
+
+	private int maxNodes;
+	private int windowSize;
+
+	public OffHeapGAL(FitnessComputer computer, Properties properties) {
+		super(computer, properties);
+		this.maxNodes = Integer.parseInt(properties.getProperty(
+				"net.duboue.pablo.gal.maxNodes", properties.getProperty(
+						"net.duboue.pablo.gal.sizeMax", "20")));
+		this.windowSize = Math.min(populationSize, Integer.parseInt(properties
+				.getProperty("net.duboue.pablo.gal.window", "4096")));
+		if (tileExecutor != null) {
+			System.err.println("** warning, the off-heap population is bred "
+					+ "one window at a time, ignoring tiles");
+			tileExecutor.shutdown();
+			tileExecutor = null;
+		}
+	}
+
+	public void startPopulation(InstanceFactory factory) {
+		this.fitness = new double[populationSize];
+		this.newFitness = new double[populationSize];
+		this.positions = new int[9];
+		for (int i = 0; i < populationSize; i++) {
+			FiniteStateAutomaton fsa = (FiniteStateAutomaton) factory
+					.newInstance();
+			if (population == null)
+				allocate(fsa);
+			population.store(i, fsa);
+			fitness[i] = Double.NaN;
+		}
+
+		// compute the fitness of all of them
+		evaluateCurrent();
+
+		updateBest();
+	}
+
+	public void setInitialPopulation(Set<Instance> population) {
+		this.fitness = new double[populationSize];
+		this.newFitness = new double[populationSize];
+		this.positions = new int[9];
+		int c = 0;
+		Iterator<Instance> p = population.iterator();
+		while (p.hasNext()) {
+			FiniteStateAutomaton fsa = (FiniteStateAutomaton) p.next();
+			if (this.population == null)
+				allocate(fsa);
+			this.population.store(c, fsa);
+			fitness[c] = fsa.getFitness();
+			c++;
+		}
+		evaluateCurrent();
+
+		updateBest();
+	}
+
+	/**
+	 * Allocate the population and the reusable automata, sharing the alphabet
+	 * and random generator of a given automaton.
+	 */
+	private void allocate(FiniteStateAutomaton prototype) {
+		this.population = new OffHeapPopulation(populationSize, maxNodes,
+				prototype.alphabet.length);
+		this.window = new FiniteStateAutomaton[windowSize];
+		for (int i = 0; i < window.length; i++)
+			window[i] = newAutomaton(prototype);
+		this.windowFitness = new double[windowSize];
+		this.windowBounds = new double[windowSize];
+		this.parent1 = newAutomaton(prototype);
+		this.parent2 = newAutomaton(prototype);
+	}
+
+	private FiniteStateAutomaton newAutomaton(FiniteStateAutomaton prototype) {
+		return new FiniteStateAutomaton(prototype.alphabet, prototype.random,
+				maxNodes);
+	}
+
+	/**
+	 * Evaluate the automata of the current generation with unknown fitness.
+	 */
+	protected void evaluateCurrent() {
+		int start = 0;
+		while (start < populationSize) {
+			int count = 0;
+			int end = start;
+			while (end < populationSize && count < window.length) {
+				if (Double.isNaN(fitness[end])) {
+					population.load(end, window[count]);
+					count++;
+				}
+				end++;
+			}
+			computer.evaluate(window, 0, count, windowFitness);
+			count = 0;
+			for (int i = start; i < end; i++)
+				if (Double.isNaN(fitness[i])) {
+					// evaluation removes cycles, keep the result
+					population.store(i, window[count]);
+					fitness[i] = windowFitness[count];
+					count++;
+				}
+			start = end;
+		}
+	}
+
+	/**
+	 * Perform a step of genetic search.
+	 */
+	@Override
+	public void step() {
+		computer.nextGeneration();
+		if (computer.isApproximate()) {
+			// the fitness changed, parents are compared on the same terms
+			Arrays.fill(fitness, Double.NaN);
+			evaluateCurrent();
+		}
+		for (int start = 0; start < populationSize; start += window.length) {
+			int end = Math.min(start + window.length, populationSize);
+			for (int i = start; i < end; i++) {
+				FiniteStateAutomaton child = window[i - start];
+
+				getNeighborhood(i, positions);
+				int other = select(positions);
+				if (rnd.nextDouble() > crossOverProbability) {
+					population.load(i, child);
+					child.setFitness(fitness[i]);
+				} else {
+					population.load(i, parent1);
+					parent1.setFitness(fitness[i]);
+					population.load(other, parent2);
+					parent2.setFitness(fitness[other]);
+					parent1.crossOver(parent2, 0, child);
+				}
+				child.pointMutation();
+			}
+			// a child only matters if it reaches the fitness of its parent
+			if (lazy)
+				System.arraycopy(fitness, start, windowBounds, 0, end - start);
+			computer.evaluate(window, 0, end - start, windowFitness,
+					lazy ? windowBounds : null);
+
+			for (int i = start; i < end; i++) {
+				FiniteStateAutomaton child = window[i - start];
+				if (population.fits(child)) {
+					population.storeNext(i, child);
+					newFitness[i] = windowFitness[i - start];
+				} else {
+					// discarded, never replaces its parent
+					population.storeNext(i, null);
+					newFitness[i] = Double.NaN;
+				}
+			}
+		}
+
+		// compare and set
+		for (int i = 0; i < populationSize; i++) {
+			if (fitness[i] <= newFitness[i])
+				fitness[i] = newFitness[i]; // replacement
+			else
+				population.keep(i);
+		}
+		population.swap();
+
+		updateBest();
+	}
+
+	/**
+	 * @return the position of the fittest cell in a neighborhood, the last one
+	 *         on ties.
+	 */
+	protected int select(int[] neighborhood) {
+		int result = neighborhood[0];
+		for (int i = 1; i < neighborhood.length; i++)
+			if (fitness[neighborhood[i]] >= fitness[result])
+				result = neighborhood[i];
+		return result;
+	}
+
+	/**
+	 * Find the best instance in the population, copying it to the heap.
+	 */
+	protected void updateBest() {
+		if (computer.isApproximate()) {
+			super.updateBest();
+			return;
+		}
+		int best = 1;
+		for (int i = 1; i < populationSize; i++)
+			if (fitness[i] > fitness[best])
+				best = i;
+		bestInstance = get(best);
+		bestFitness = fitness[best];
+	}
+
+	/**
+	 * @return a copy on the heap of the automaton at a given position.
+	 */
+	public FiniteStateAutomaton get(int i) {
+		FiniteStateAutomaton result = newAutomaton(parent1);
+		population.load(i, result);
+		result.setFitness(fitness[i]);
+		return result;
+	}
+
+	public void dumpPopulation() {
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++)
+				System.err.print(Math.round(fitness[i * side + j] * 1000)
+						/ 1000.0 + " ");
+			System.err.println();
+		}
+		System.err.println();
+	}
+
+	/**
+	 * Return the top ranked instances
+	 */
+	public Instance[] getTopRank(int rank) {
+		if (rank > populationSize)
+			rank = populationSize;
+
+		// sort positions by decreasing fitness
+		Integer[] order = new Integer[populationSize];
+		for (int i = 0; i < order.length; i++)
+			order[i] = Integer.valueOf(i);
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(fitness[b.intValue()], fitness[a
+						.intValue()]);
+			}
+		});
+
+		Instance[] result = new Instance[rank];
+		for (int i = 0; i < rank; i++)
+			result[i] = get(order[i].intValue());
+		return result;
+	}
+}
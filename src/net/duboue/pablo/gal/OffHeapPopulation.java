@@ -0,0 +1,173 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.gal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import net.duboue.pablo.util.PackedInts;
+
+/**
+ * The chromosomes of a population stored outside the Java heap. Each automaton
+ * takes a fixed-size slot holding its number of states followed by its
+ * transition table. There are two generations: the current one and the next
+ * one being built, swapped once the next one is complete. Automata are copied
+ * in and out of reusable FiniteStateAutomaton objects with load and store.
+ */
+public class OffHeapPopulation {
+	/** Number of slots per generation. */
+	protected int capacity;
+	/** Largest number of states a slot can hold. */
+	protected int maxNodes;
+	protected int symbols;
+	/** Ints per slot. */
+	protected int stride;
+	/** Slots per buffer, buffers are limited to 2GB. */
+	protected int slotsPerPage;
+
+	protected IntBuffer[] current;
+	protected IntBuffer[] next;
+
+	public OffHeapPopulation(int capacity, int maxNodes, int symbols) {
+		this.capacity = capacity;
+		this.maxNodes = maxNodes;
+		this.symbols = symbols;
+		this.stride = 1 + maxNodes * symbols;
+		this.slotsPerPage = Math.min(capacity, Integer.MAX_VALUE / 4 / stride);
+		if (slotsPerPage < 1)
+			throw new IllegalArgumentException("Slots too large: " + maxNodes
+					+ " states");
+		this.current = allocate();
+		this.next = allocate();
+	}
+
+	private IntBuffer[] allocate() {
+		IntBuffer[] pages = new IntBuffer[(capacity + slotsPerPage - 1)
+				/ slotsPerPage];
+		for (int p = 0; p < pages.length; p++) {
+			int slots = Math.min(slotsPerPage, capacity - p * slotsPerPage);
+			pages[p] = ByteBuffer.allocateDirect(slots * stride * 4).order(
+					ByteOrder.nativeOrder()).asIntBuffer();
+		}
+		return pages;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getMaxNodes() {
+		return maxNodes;
+	}
+
+	/**
+	 * @return whether an automaton fits in a slot.
+	 */
+	public boolean fits(FiniteStateAutomaton fsa) {
+		return fsa.numberOfNodes <= maxNodes;
+	}
+
+	/**
+	 * @return the number of states of the automaton in a slot of the current
+	 *         generation, 0 if the slot is empty.
+	 */
+	public int size(int slot) {
+		return current[slot / slotsPerPage].get(slot % slotsPerPage * stride);
+	}
+
+	/**
+	 * Copy the automaton in a slot of the current generation into a reusable
+	 * one, its fitness is left unknown.
+	 */
+	public void load(int slot, FiniteStateAutomaton into) {
+		load(current, slot, into);
+	}
+
+	/**
+	 * Copy an automaton into a slot of the current generation.
+	 */
+	public void store(int slot, FiniteStateAutomaton fsa) {
+		store(current, slot, fsa);
+	}
+
+	/**
+	 * Copy an automaton into a slot of the next generation, or empty the slot
+	 * if the automaton is null.
+	 */
+	public void storeNext(int slot, FiniteStateAutomaton fsa) {
+		if (fsa == null)
+			next[slot / slotsPerPage].put(slot % slotsPerPage * stride, 0);
+		else
+			store(next, slot, fsa);
+	}
+
+	/**
+	 * Carry the automaton in a slot of the current generation over to the next
+	 * one.
+	 */
+	public void keep(int slot) {
+		IntBuffer from = current[slot / slotsPerPage];
+		IntBuffer to = next[slot / slotsPerPage];
+		int offset = slot % slotsPerPage * stride;
+		int length = 1 + from.get(offset) * symbols;
+		for (int i = 0; i < length; i++)
+			to.put(offset + i, from.get(offset + i));
+	}
+
+	/**
+	 * Make the next generation the current one.
+	 */
+	public void swap() {
+		IntBuffer[] swap = current;
+		current = next;
+		next = swap;
+	}
+
+	private void load(IntBuffer[] generation, int slot,
+			FiniteStateAutomaton into) {
+		IntBuffer page = generation[slot / slotsPerPage];
+		int offset = slot % slotsPerPage * stride;
+		int numberOfNodes = page.get(offset);
+		into.reset(into.alphabet, into.random, numberOfNodes);
+		PackedInts table = into.transitionTable;
+		int length = numberOfNodes * symbols;
+		offset++;
+		for (int i = 0; i < length; i++)
+			table.set(i, page.get(offset + i));
+	}
+
+	private void store(IntBuffer[] generation, int slot,
+			FiniteStateAutomaton fsa) {
+		if (!fits(fsa))
+			throw new IllegalStateException("Automaton with "
+					+ fsa.numberOfNodes + " states does not fit in a slot of "
+					+ maxNodes);
+		IntBuffer page = generation[slot / slotsPerPage];
+		int offset = slot % slotsPerPage * stride;
+		PackedInts table = fsa.transitionTable;
+		int length = fsa.numberOfNodes * symbols;
+		page.put(offset, fsa.numberOfNodes);
+		offset++;
+		for (int i = 0; i < length; i++)
+			page.put(offset + i, table.get(i));
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.gal;
+
+import java.util.Arrays;
+
+import net.duboue.pablo.util.PackedInts;
+
+/**
+ * A block of automata evaluated together. Their transition tables are copied
+ * next to each other and all of them advance over a training sequence at
+ * once, symbol by symbol, dropping the ones that stop recognizing it. Sums are
+ * accumulated in the same order as walking each sequence on each automaton.
+ */
+public class PopulationEvaluator {
+	/** Number of automata in the block. */
+	protected int size;
+	/** Number of symbols of the alphabet, shared by all automata. */
+	protected int symbols;
+
+	protected FiniteStateAutomaton[] automata;
+	/** Transition tables of the automata, one after the other. */
+	protected int[] tables;
+	/** Where the table of each automaton starts. */
+	protected int[] base;
+	/** Where the row of the final state of each automaton starts. */
+	protected int[] last;
+
+	/** Row of the current state of each automaton. */
+	protected int[] state;
+	/** Length of the prefix recognized by each automaton. */
+	protected int[] matched;
+	/** Automata still recognizing the current sequence. */
+	protected int[] alive;
+
+	/** Weighted sum of the prefix scores of each automaton. */
+	protected double[] sums;
+	/** Number of sequences whose prefix ends in the final state. */
+	protected int[] fully;
+
+	/**
+	 * @param capacity
+	 *            largest number of automata in a block.
+	 */
+	public PopulationEvaluator(int capacity) {
+		this.automata = new FiniteStateAutomaton[capacity];
+		this.tables = new int[0];
+		this.base = new int[capacity];
+		this.last = new int[capacity];
+		this.state = new int[capacity];
+		this.matched = new int[capacity];
+		this.alive = new int[capacity];
+		this.sums = new double[capacity];
+		this.fully = new int[capacity];
+		this.size = 0;
+	}
+
+	private static volatile boolean vectorWarned = false;
+
+	/**
+	 * Create a block evaluator, using vector instructions if asked to and the
+	 * JVM supports them, scalar code otherwise.
+	 */
+	public static PopulationEvaluator newInstance(int capacity, boolean vector) {
+		if (vector)
+			try {
+				return (PopulationEvaluator) Class.forName(
+						"net.duboue.pablo.gal.VectorEvaluator").getConstructor(
+						int.class).newInstance(capacity);
+			} catch (Throwable e) {
+				if (!vectorWarned) {
+					vectorWarned = true;
+					System.err.println("** warning, vector evaluation not available ("
+							+ e + "), using scalar evaluation");
+				}
+			}
+		return new PopulationEvaluator(capacity);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Add an automaton to the block.
+	 * 
+	 * @return its lane in the block.
+	 */
+	public int add(FiniteStateAutomaton fsa) {
+		if (size == automata.length)
+			throw new IllegalStateException("Block full");
+		int k = fsa.alphabet.length;
+		if (size == 0)
+			symbols = k;
+		else if (k != symbols)
+			throw new IllegalStateException("Different alphabets in a block");
+		int start = size == 0 ? 0 : base[size - 1] + automata[size - 1].size()
+				* symbols;
+		int length = fsa.size() * k;
+		if (tables.length < start + length)
+			tables = Arrays.copyOf(tables, Math.max(start + length,
+					tables.length * 2));
+		fsa.transitionTable.get(0, tables, start, length);
+		automata[size] = fsa;
+		base[size] = start;
+		last[size] = start + (fsa.size() - 1) * k;
+		return size++;
+	}
+
+	public FiniteStateAutomaton getAutomaton(int lane) {
+		return automata[lane];
+	}
+
+	/**
+	 * @return the weighted sum of the prefix scores of an automaton, from the
+	 *         last call to consistency.
+	 */
+	public double getConsistency(int lane) {
+		return sums[lane];
+	}
+
+	/**
+	 * @return the (weighted) number of sequences whose prefix ends in the
+	 *         final state, from the last call to consistency.
+	 */
+	public int getFully(int lane) {
+		return fully[lane];
+	}
+
+	public void clear() {
+		Arrays.fill(automata, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * Score the longest prefix of each sequence recognized by each automaton
+	 * of the block, see getConsistency.
+	 */
+	public void consistency(Corpus corpus) {
+		int n = size;
+		int k = symbols;
+		int[] tables = this.tables;
+		int[] base = this.base;
+		int[] state = this.state;
+		int[] matched = this.matched;
+		int[] alive = this.alive;
+		Arrays.fill(sums, 0, n, 0.0);
+		Arrays.fill(fully, 0, n, 0);
+
+		PackedInts symbols = corpus.getSymbols();
+		for (int s = 0; s < corpus.size(); s++) {
+			int offset = corpus.offset(s);
+			int length = corpus.length(s);
+			for (int lane = 0; lane < n; lane++) {
+				state[lane] = base[lane];
+				matched[lane] = length;
+				alive[lane] = lane;
+			}
+			int live = n;
+			for (int i = 0; i < length && live > 0; i++) {
+				int symbol = symbols.get(offset + i);
+				int kept = 0;
+				for (int a = 0; a < live; a++) {
+					int lane = alive[a];
+					int next = tables[state[lane] + symbol];
+					if (next == -1)
+						matched[lane] = i;
+					else {
+						state[lane] = base[lane] + next * k;
+						alive[kept++] = lane;
+					}
+				}
+				live = kept;
+			}
+
+			int weight = corpus.weight(s);
+			for (int lane = 0; lane < n; lane++) {
+				int l = matched[lane];
+				if (l > 0) {
+					boolean accepted = state[lane] == last[lane];
+					sums[lane] += weight
+							* ((double) l / length - (accepted ? 0
+									: 1.0 / (2.0 * length)));
+					if (accepted)
+						fully[lane] += weight;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.gal;
+
+import java.util.Arrays;
+
+import net.duboue.pablo.util.PackedInts;
+
+/**
+ * A set of training sequences compiled into a prefix trie, so shared prefixes
+ * are only walked once per automaton. Nodes are stored in pre-order, node 0
+ * being the root, so the descendants of a node are the nodes right after it,
+ * up to (but not including) end[node].
+ */
+public class PrefixTrie {
+	/** Number of nodes. */
+	protected int size;
+	/** Number of sequences, repeats included. */
+	protected int sequences;
+	/** Length of the longest sequence. */
+	protected int maxDepth;
+
+	/** Symbol leading to each node. */
+	protected int[] symbol;
+	/** Depth of each node, the root has depth 0. */
+	protected int[] depth;
+	/** One past the last descendant of each node. */
+	protected int[] end;
+	/** Number of sequences ending at each node. */
+	protected int[] ends;
+	/** Number of sequences going through each node. */
+	protected int[] count;
+	/** Sum of 1 / length of the sequences going through each node. */
+	protected double[] inverseLengths;
+
+	/**
+	 * An empty trie, for subclasses or loaders to fill.
+	 */
+	protected PrefixTrie() {
+	}
+
+	public PrefixTrie(int[][] sequences) {
+		this(sequences, null);
+	}
+
+	/**
+	 * @param weights
+	 *            how many times each sequence appears, null if once.
+	 */
+	public PrefixTrie(int[][] sequences, int[] weights) {
+		this(new Corpus(null, sequences, weights));
+	}
+
+	public PrefixTrie(Corpus corpus) {
+		PackedInts symbols = corpus.getSymbols();
+		// build a linked trie first
+		int capacity = 16;
+		int[] firstChild = new int[capacity];
+		int[] nextSibling = new int[capacity];
+		int[] nodeSymbol = new int[capacity];
+		int[] nodeEnds = new int[capacity];
+		int nodes = 1;
+		firstChild[0] = -1;
+		nextSibling[0] = -1;
+		for (int s = 0; s < corpus.size(); s++) {
+			int offset = corpus.offset(s);
+			int length = corpus.length(s);
+			int current = 0;
+			for (int i = 0; i < length; i++) {
+				int next = symbols.get(offset + i);
+				int child = firstChild[current];
+				int previous = -1;
+				// children are kept sorted by symbol
+				while (child != -1 && nodeSymbol[child] < next) {
+					previous = child;
+					child = nextSibling[child];
+				}
+				if (child == -1 || nodeSymbol[child] != next) {
+					if (nodes == capacity) {
+						capacity *= 2;
+						firstChild = Arrays.copyOf(firstChild, capacity);
+						nextSibling = Arrays.copyOf(nextSibling, capacity);
+						nodeSymbol = Arrays.copyOf(nodeSymbol, capacity);
+						nodeEnds = Arrays.copyOf(nodeEnds, capacity);
+					}
+					int created = nodes++;
+					firstChild[created] = -1;
+					nodeSymbol[created] = next;
+					nextSibling[created] = child;
+					if (previous == -1)
+						firstChild[current] = created;
+					else
+						nextSibling[previous] = created;
+					child = created;
+				}
+				current = child;
+			}
+			nodeEnds[current] += corpus.weight(s);
+			this.sequences += corpus.weight(s);
+			if (length > maxDepth)
+				maxDepth = length;
+		}
+
+		// then lay it out in pre-order
+		this.size = nodes;
+		this.symbol = new int[size];
+		this.depth = new int[size];
+		this.end = new int[size];
+		this.ends = new int[size];
+		this.count = new int[size];
+		this.inverseLengths = new double[size];
+		int[] parent = new int[size];
+		int[] stack = new int[maxDepth + 1];
+		int[] position = new int[maxDepth + 1];
+		int top = 0;
+		int next = 1;
+		stack[0] = 0;
+		position[0] = 0;
+		parent[0] = -1;
+		symbol[0] = -1;
+		ends[0] = nodeEnds[0];
+		while (top >= 0) {
+			int child = firstChild[stack[top]];
+			if (child != -1) {
+				// descend into the first child, remember the rest
+				firstChild[stack[top]] = nextSibling[child];
+				top++;
+				stack[top] = child;
+				position[top] = next;
+				parent[next] = position[top - 1];
+				symbol[next] = nodeSymbol[child];
+				depth[next] = top;
+				ends[next] = nodeEnds[child];
+				next++;
+			} else {
+				// all children done
+				end[position[top]] = next;
+				top--;
+			}
+		}
+
+		// counts, from the leaves up
+		for (int i = size - 1; i >= 0; i--) {
+			count[i] += ends[i];
+			if (depth[i] > 0)
+				inverseLengths[i] += ends[i] / (double) depth[i];
+			if (parent[i] >= 0) {
+				count[parent[i]] += count[i];
+				inverseLengths[parent[i]] += inverseLengths[i];
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getSequenceCount() {
+		return sequences;
+	}
+
+	/**
+	 * Walk the trie in lockstep with an automaton, pruning it at missing
+	 * transitions. Same as adding up, for every sequence, the length of its
+	 * longest prefix traversed by the automaton over its length, minus half
+	 * over its length if the prefix doesn't end in the final state. The terms
+	 * are added in trie order and whole subtrees at once, so the result can
+	 * differ from adding them up sequence by sequence in the last bits.
+	 * 
+	 * @param fully
+	 *            if not null, fully[0] is increased by the number of sequences
+	 *            whose prefix ends in the final state.
+	 * @return the consistency of all the sequences, added up.
+	 */
+	public double consistency(FiniteStateAutomaton fsa, int[] fully) {
+		return consistency(fsa, fully, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Same as consistency, giving up as soon as the result cannot reach a
+	 * minimum (each sequence adds at most 1).
+	 * 
+	 * @return the consistency of all the sequences added up, -Infinity if it
+	 *         is below minimum.
+	 */
+	public double consistency(FiniteStateAutomaton fsa, int[] fully,
+			double minimum) {
+		PackedInts table = fsa.transitionTable;
+		int symbols = fsa.alphabet.length;
+		int last = fsa.numberOfNodes - 1;
+		int[] stateAt = scratch.get();
+		if (stateAt.length <= maxDepth) {
+			stateAt = new int[maxDepth + 1];
+			scratch.set(stateAt);
+		}
+		double result = 0.0;
+		int accepted = 0;
+		// sequences not scored yet, the empty ones score 0
+		int remaining = sequences - ends[0];
+
+		stateAt[0] = 0;
+		int node = 1;
+		while (node < size) {
+			int d = depth[node];
+			int parentState = stateAt[d - 1];
+			int next = table.get(parentState * symbols + symbol[node]);
+			if (next == -1) {
+				// every sequence below stops at the parent
+				if (d > 1) {
+					boolean acc = parentState == last;
+					result += (d - 1 - (acc ? 0 : 0.5)) * inverseLengths[node];
+					if (acc)
+						accepted += count[node];
+				}
+				remaining -= count[node];
+				if (result + remaining < minimum)
+					return Double.NEGATIVE_INFINITY;
+				node = end[node];
+			} else {
+				stateAt[d] = next;
+				if (ends[node] > 0) {
+					boolean acc = next == last;
+					result += ends[node]
+							* (1.0 - (acc ? 0 : 1.0 / (2.0 * d)));
+					if (acc)
+						accepted += ends[node];
+					remaining -= ends[node];
+					if (result + remaining < minimum)
+						return Double.NEGATIVE_INFINITY;
+				}
+				node++;
+			}
+		}
+		if (fully != null)
+			fully[0] += accepted;
+		return result;
+	}
+
+	/** Per-thread state at each depth, grown as needed. */
+	private static final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[0];
+		}
+	};
+}
@@ -0,0 +1,142 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.gal;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.duboue.pablo.util.PackedInts;
+
+/**
+ * A rotating random subsample of a corpus: the sequences are shuffled and
+ * handed out a window at a time, so each sequence is used once before any is
+ * used again (but for the ones left over at the end of a round). It also
+ * keeps track of how far the fitness on the subsample is from the fitness on
+ * the whole corpus.
+ */
+public class Subsample {
+	protected Corpus corpus;
+	protected int size;
+	protected Random random;
+
+	/** The sequences in the order they are handed out. */
+	protected int[] order;
+	protected int next;
+	protected Corpus current;
+
+	/** Automata scored on both, since the last subsample was taken. */
+	protected int compared;
+	protected double errorSum;
+	protected double errorMax;
+
+	/**
+	 * @param size
+	 *            number of distinct sequences in each subsample.
+	 */
+	public Subsample(Corpus corpus, int size, Random random) {
+		this.corpus = corpus;
+		this.size = Math.min(size, corpus.size());
+		this.random = random;
+		this.order = new int[corpus.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		this.next = order.length;
+	}
+
+	public Corpus getCorpus() {
+		return corpus;
+	}
+
+	/**
+	 * @return the current subsample, null before the first call to next.
+	 */
+	public Corpus getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Take the next subsample, forgetting the errors recorded so far.
+	 */
+	public Corpus next() {
+		if (next + size > order.length) {
+			// new round
+			for (int i = order.length - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+			}
+			next = 0;
+		}
+		// in corpus order, the symbols are read in the same direction
+		int[] chosen = Arrays.copyOfRange(order, next, next + size);
+		next += size;
+		Arrays.sort(chosen);
+
+		int total = 0;
+		int maxWeight = 0;
+		for (int i : chosen) {
+			total += corpus.length(i);
+			maxWeight = Math.max(maxWeight, corpus.weight(i));
+		}
+		PackedInts symbols = PackedInts.allocate(total, corpus.getSymbols()
+				.maxValue());
+		PackedInts offsets = PackedInts.allocate(size + 1, total);
+		PackedInts weights = PackedInts.allocate(size, maxWeight);
+		int pos = 0;
+		for (int c = 0; c < size; c++) {
+			int i = chosen[c];
+			int length = corpus.length(i);
+			offsets.set(c, pos);
+			corpus.getSymbols().copyTo(corpus.offset(i), symbols, pos, length);
+			weights.set(c, corpus.weight(i));
+			pos += length;
+		}
+		offsets.set(size, pos);
+		this.current = new Corpus(corpus.getAlphabet(), offsets, symbols,
+				weights);
+
+		compared = 0;
+		errorSum = 0.0;
+		errorMax = 0.0;
+		return current;
+	}
+
+	/**
+	 * Record the fitness of an automaton on the subsample and on the whole
+	 * corpus.
+	 */
+	public synchronized void compare(double sampled, double full) {
+		if (Double.isNaN(sampled) || Double.isNaN(full))
+			return;
+		double error = Math.abs(sampled - full);
+		compared++;
+		errorSum += error;
+		errorMax = Math.max(errorMax, error);
+	}
+
+	public synchronized String toString() {
+		return "Subsample: " + size + " of " + corpus.size()
+				+ " sequences, error on " + compared + " automata: mean "
+				+ (compared == 0 ? 0.0 : errorSum / compared) + ", max "
+				+ errorMax;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.gal;
+
+import java.util.Arrays;
+
+import net.duboue.pablo.util.PackedInts;
+
+/**
+ * Which training sequences read each transition of an automaton, with the
+ * walk of every sequence (see FiniteStateAutomaton.longestPrefix). Failing
+ * lookups count as reads. An index is never changed once built, so clones
+ * share it: after changing some transitions, only the sequences that read
+ * them need to be walked again.
+ */
+public class UsageIndex {
+	/** Walk of each sequence. */
+	protected int[] walks;
+	/**
+	 * The sequences reading transition t are sequences[offsets[t]] up to (but
+	 * not including) sequences[offsets[t + 1]].
+	 */
+	protected int[] offsets;
+	protected int[] sequences;
+
+	/**
+	 * Walk every sequence on an automaton, recording the transitions read.
+	 */
+	public UsageIndex(FiniteStateAutomaton fsa, Corpus corpus) {
+		int symbols = fsa.alphabet.length;
+		int transitions = fsa.numberOfNodes * symbols;
+		int size = corpus.size();
+		Scratch s = scratch.get();
+		this.walks = new int[size];
+
+		// walk, remembering the transitions read by each sequence
+		int reads = corpus.offset(size);
+		s.ensure(size, reads);
+		int[] read = s.read;
+		int[] ends = s.walks;
+		int[] count = new int[transitions + 1];
+		int r = 0;
+		for (int i = 0; i < size; i++) {
+			int seqLength = corpus.length(i);
+			walks[i] = walk(fsa, corpus.getSymbols(), corpus.offset(i),
+					seqLength, read, r);
+			int length = FiniteStateAutomaton.prefixLength(walks[i]);
+			int end = r + (length < seqLength ? length + 1 : length);
+			for (; r < end; r++)
+				count[read[r] + 1]++;
+			ends[i] = r;
+		}
+
+		// counting sort by transition, sequences stay in order
+		for (int t = 0; t < transitions; t++)
+			count[t + 1] += count[t];
+		this.offsets = count.clone();
+		this.sequences = new int[count[transitions]];
+		r = 0;
+		for (int i = 0; i < size; i++)
+			for (; r < ends[i]; r++)
+				this.sequences[count[read[r]]++] = i;
+	}
+
+	/**
+	 * Walk a sequence as FiniteStateAutomaton.longestPrefix does, writing the
+	 * transitions read from read[r] on, the failing one included.
+	 */
+	private static int walk(FiniteStateAutomaton fsa, PackedInts seq,
+			int offset, int length, int[] read, int r) {
+		PackedInts table = fsa.transitionTable;
+		int symbols = fsa.alphabet.length;
+		int state = 0;
+		int i = 0;
+		while (i < length) {
+			int t = state * symbols + seq.get(offset + i);
+			read[r++] = t;
+			int next = table.get(t);
+			if (next == -1)
+				break;
+			state = next;
+			i++;
+		}
+		return (i << 1) | (state == fsa.numberOfNodes - 1 ? 1 : 0);
+	}
+
+	/**
+	 * @return the walk of each sequence on an automaton that only differs from
+	 *         the indexed one on the given transitions. The array is reused by
+	 *         the next call from the same thread.
+	 */
+	public int[] walks(FiniteStateAutomaton fsa, Corpus corpus,
+			int[] changed, int changedCount) {
+		Scratch s = scratch.get();
+		s.ensure(corpus.size(), 0);
+		int[] result = s.walks;
+		System.arraycopy(walks, 0, result, 0, walks.length);
+		int[] seen = s.seen;
+		if (s.stamp == Integer.MAX_VALUE) {
+			Arrays.fill(seen, 0);
+			s.stamp = 0;
+		}
+		int stamp = ++s.stamp;
+		for (int c = 0; c < changedCount; c++) {
+			int t = changed[c];
+			for (int j = offsets[t]; j < offsets[t + 1]; j++) {
+				int i = this.sequences[j];
+				if (seen[i] != stamp) {
+					seen[i] = stamp;
+					result[i] = fsa.longestPrefix(corpus, i);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Per-thread buffers, grown as needed.
+	 */
+	private static class Scratch {
+		public int[] read = new int[0];
+		public int[] walks = new int[0];
+		public int[] seen = new int[0];
+		public int stamp = 0;
+
+		public void ensure(int sequences, int reads) {
+			if (read.length < reads)
+				read = new int[reads];
+			if (walks.length < sequences) {
+				walks = new int[sequences];
+				seen = new int[sequences];
+				stamp = 0;
+			}
+		}
+	}
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+}
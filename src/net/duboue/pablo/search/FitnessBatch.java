@@ -0,0 +1,127 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.search;
+
+import java.util.concurrent.Phaser;
+
+/**
+ * A batch of fitness computations over a pool of instances. Results are
+ * written straight into a slot of a fitness array indexed by pool position
+ * and the end of the batch is signaled by a phaser, with one party per chunk
+ * of work. No IDs, events or locks are involved.
+ * 
+ * @author Pablo Ariel Duboue (pablo.duboue@gmail.com)
+ * @version 0.02
+ */
+
+public class FitnessBatch {
+	protected Instance[] pool;
+	protected double[] fitness;
+	protected double[] bounds;
+	protected Phaser phaser;
+	protected volatile Throwable failure;
+
+	/**
+	 * @param pool
+	 *            the instances being evaluated.
+	 * @param fitness
+	 *            where to write the fitness of each position, can be null (the
+	 *            fitness is always stored in the instance itself).
+	 */
+	public FitnessBatch(Instance[] pool, double[] fitness) {
+		this(pool, fitness, null);
+	}
+
+	/**
+	 * @param bounds
+	 *            the fitness each position has to reach to be of any use, can
+	 *            be null (see FitnessComputer.compute(Instance, double)).
+	 */
+	public FitnessBatch(Instance[] pool, double[] fitness, double[] bounds) {
+		this.pool = pool;
+		this.fitness = fitness;
+		this.bounds = bounds;
+		this.phaser = new Phaser(1); // the submitter
+	}
+
+	public Instance[] getPool() {
+		return pool;
+	}
+
+	public double[] getFitness() {
+		return fitness;
+	}
+
+	/**
+	 * @return the fitness a given position has to reach, NaN if none.
+	 */
+	public double getBound(int i) {
+		return bounds == null ? Double.NaN : bounds[i];
+	}
+
+	/**
+	 * Record the fitness of a given position.
+	 */
+	public void set(int i, double value) {
+		if (fitness != null)
+			fitness[i] = value;
+		pool[i].setFitness(value);
+	}
+
+	/**
+	 * A new chunk of work is about to be started.
+	 */
+	protected void register() {
+		phaser.register();
+	}
+
+	/**
+	 * A chunk of work (or the submitter) is done.
+	 */
+	protected void arrive() {
+		phaser.arriveAndDeregister();
+	}
+
+	protected void fail(Throwable t) {
+		if (failure == null)
+			failure = t;
+	}
+
+	/**
+	 * @return true once every position has been evaluated.
+	 */
+	public boolean isDone() {
+		return phaser.isTerminated();
+	}
+
+	/**
+	 * Keep the current thread waiting until the whole batch is evaluated.
+	 * Errors thrown by the evaluation are rethrown as they are, anything else
+	 * is wrapped in an IllegalStateException.
+	 */
+	public void await() {
+		phaser.awaitAdvance(0);
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure != null)
+			throw new IllegalStateException(failure);
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.search;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.duboue.pablo.util.IntSeq;
+
+/**
+ * A bounded fitness cache, keyed on the chromosome of an instance. It is
+ * split into independently locked segments, each one evicting its least
+ * recently used entries.
+ * 
+ * @author Pablo Ariel Duboue (pablo.duboue@gmail.com)
+ * @version 0.02
+ */
+
+public class FitnessCache {
+	protected Segment[] segments;
+	protected AtomicLong hits;
+	protected AtomicLong misses;
+
+	/**
+	 * @param capacity
+	 *            maximum number of entries.
+	 * @param concurrency
+	 *            expected number of threads using the cache at once.
+	 */
+	public FitnessCache(int capacity, int concurrency) {
+		int count = 1;
+		while (count < concurrency * 4 && count < capacity)
+			count <<= 1;
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++)
+			segments[i] = new Segment((capacity + count - 1) / count);
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+
+	protected static class Segment extends LinkedHashMap<IntSeq, Double> {
+		private static final long serialVersionUID = 1L;
+
+		protected int capacity;
+
+		public Segment(int capacity) {
+			super(16, 0.75f, true); // access order
+			this.capacity = capacity;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<IntSeq, Double> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	protected Segment segmentFor(IntSeq key) {
+		long hash = key.longHashCode();
+		return segments[(int) (hash >>> 40) & (segments.length - 1)];
+	}
+
+	/**
+	 * @return the cached fitness or NaN if absent.
+	 */
+	public double get(IntSeq key) {
+		Segment segment = segmentFor(key);
+		Double result;
+		synchronized (segment) {
+			result = segment.get(key);
+		}
+		if (result == null) {
+			misses.incrementAndGet();
+			return Double.NaN;
+		}
+		hits.incrementAndGet();
+		return result.doubleValue();
+	}
+
+	public void put(IntSeq key, double fitness) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			segment.put(key, fitness);
+		}
+	}
+
+	public void clear() {
+		for (Segment segment : segments)
+			synchronized (segment) {
+				segment.clear();
+			}
+	}
+
+	public int size() {
+		int result = 0;
+		for (Segment segment : segments)
+			synchronized (segment) {
+				result += segment.size();
+			}
+		return result;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public String toString() {
+		long h = getHits();
+		long m = getMisses();
+		double rate = h + m == 0 ? 0 : Math.round(1000.0 * h / (h + m)) / 1000.0;
+		return "FitnessCache[ size=" + size() + " hits=" + h + " misses=" + m
+				+ " hitRate=" + rate + " ]";
+	}
+}
@@ -23,29 +23,91 @@ package net.duboue.pablo.search;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * An abstract class for fitness computers.
+ * An abstract class for fitness computers. Computations are run on an
+ * executor, which can be a ForkJoin pool, a pool of platform threads or a
+ * virtual thread per task (for fitness functions that block).
  * 
  * @author Pablo Ariel Duboue (pablo.duboue@gmail.com)
  * @version 0.02
  */
 
-public abstract class FitnessComputer implements Runnable {
-	protected static boolean mustStop = false;
-
-	public static void stopComputers() {
-		mustStop = true;
-	}
+public abstract class FitnessComputer {
+	public static final String FORKJOIN = "forkjoin";
+	public static final String PLATFORM = "platform";
+	public static final String VIRTUAL = "virtual";
 
 	protected List<ComputationListener> listeners;
 	protected int lastID;
-	protected List<Task> tasks;
+	protected int parallelism;
+	protected ExecutorService executor;
 
 	public FitnessComputer() {
+		this(FORKJOIN, 0);
+	}
+
+	/**
+	 * @param parallelism
+	 *            number of worker threads used by the bulk evaluation.
+	 */
+	public FitnessComputer(int parallelism) {
+		this(FORKJOIN, parallelism);
+	}
+
+	/**
+	 * @param mode
+	 *            the kind of executor, one of FORKJOIN, PLATFORM or VIRTUAL.
+	 * @param parallelism
+	 *            number of worker threads (or of concurrent chunks, for
+	 *            virtual threads), 0 for one per core.
+	 */
+	public FitnessComputer(String mode, int parallelism) {
 		this.listeners = new LinkedList<ComputationListener>();
-		this.tasks = new LinkedList<Task>();
 		this.lastID = 0;
+		this.parallelism = parallelism < 1 ? Runtime.getRuntime()
+				.availableProcessors() : parallelism;
+		this.executor = newExecutor(mode, this.parallelism);
+	}
+
+	/**
+	 * Create an executor of a given kind. Virtual threads fall back to
+	 * platform threads on JVMs that do not support them.
+	 */
+	public static ExecutorService newExecutor(String mode, int parallelism) {
+		if (FORKJOIN.equals(mode))
+			return new ForkJoinPool(parallelism);
+		if (VIRTUAL.equals(mode)) {
+			try {
+				return (ExecutorService) Executors.class.getMethod(
+						"newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (Exception e) {
+				System.err.println("** warning, virtual threads not available ("
+						+ e + "), using platform threads");
+				mode = PLATFORM;
+			}
+		}
+		if (PLATFORM.equals(mode))
+			return Executors.newFixedThreadPool(parallelism,
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "fitness-computer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		throw new IllegalArgumentException("Unknown executor: " + mode);
+	}
+
+	/**
+	 * Stop accepting computations, the ones already scheduled are finished.
+	 */
+	public void shutdown() {
+		executor.shutdown();
 	}
 
 	public synchronized void addComputationListener(ComputationListener listener) {
@@ -63,14 +125,16 @@ public abstract class FitnessComputer implements Runnable {
 		return result;
 	}
 
-	public synchronized void scheduleCompute(Object id, Instance instance) {
-		synchronized (tasks) {
-			tasks.add(new Task(id, instance));
-			tasks.notify();
-		}
+	/**
+	 * Schedule the computation of a single instance, listeners are notified
+	 * when it is done. Bulk computations should use evaluate or submit
+	 * instead.
+	 */
+	public void scheduleCompute(Object id, Instance instance) {
+		executor.execute(new Task(id, instance));
 	}
 
-	protected class Task {
+	protected class Task implements Runnable {
 		public Object id;
 		public Instance instance;
 
@@ -78,33 +142,154 @@ public abstract class FitnessComputer implements Runnable {
 			this.id = id;
 			this.instance = instance;
 		}
-	}
 
-	public void run() {
-		Task current = null;
-		while (!mustStop) {
-			synchronized (tasks) {
-				if (tasks.isEmpty()) {
-					try {
-						tasks.wait();
-					} catch (InterruptedException e) {
-					}
-				} else
-					current = tasks.remove(0);
+		public void run() {
+			double fitness = compute(instance);
+			synchronized (FitnessComputer.this) {
+				Iterator<ComputationListener> l = listeners.iterator();
+				while (l.hasNext())
+					l.next().computationPerformed(
+							new ComputationEvent(id, new Double(fitness)));
 			}
-			if (current != null) {
-				double fitness = compute(current.instance);
-				synchronized (this) {
-					Iterator<ComputationListener> l = listeners.iterator();
-					while (l.hasNext())
-						l.next()
-								.computationPerformed(new ComputationEvent(
-										current.id, new Double(fitness)));
-				}
-				current = null;
+		}
+	}
+
+	/**
+	 * Whether the fitness is an approximation that changes from a generation
+	 * to the next (see nextGeneration and exactFitness). By default it is
+	 * exact.
+	 */
+	public boolean isApproximate() {
+		return false;
+	}
+
+	/**
+	 * Called by the search before each generation. Approximate fitness
+	 * computers can change how they approximate it, the instances have to be
+	 * evaluated again then.
+	 */
+	public void nextGeneration() {
+	}
+
+	/**
+	 * The exact fitness of an instance, to be reported. By default the
+	 * fitness of the instance, computed if unknown.
+	 */
+	public double exactFitness(Instance instance) {
+		if (!Double.isNaN(instance.getFitness()))
+			return instance.getFitness();
+		return compute(instance);
+	}
+
+	/**
+	 * Compute the fitness of a range of instances of a pool, returning once
+	 * the whole range has been scored. No listeners are notified.
+	 * 
+	 * @param pool
+	 *            the instances to evaluate.
+	 * @param from
+	 *            first position to evaluate (inclusive).
+	 * @param to
+	 *            last position to evaluate (exclusive).
+	 */
+	public void evaluate(Instance[] pool, int from, int to) {
+		evaluate(pool, from, to, null);
+	}
+
+	/**
+	 * Same as evaluate, also writing the fitness of position i into
+	 * fitness[i].
+	 */
+	public void evaluate(Instance[] pool, int from, int to, double[] fitness) {
+		submit(pool, from, to, fitness, null).await();
+	}
+
+	/**
+	 * Same as evaluate, where the instance at position i is only of use if its
+	 * fitness reaches bounds[i]. Instances that cannot reach it may be given
+	 * any fitness below it.
+	 */
+	public void evaluate(Instance[] pool, int from, int to, double[] fitness,
+			double[] bounds) {
+		submit(pool, from, to, fitness, bounds).await();
+	}
+
+	/**
+	 * Start computing the fitness of a range of instances of a pool. The range
+	 * is split into chunks that are evaluated on a work-stealing pool, the
+	 * returned batch signals when all of them are done.
+	 * 
+	 * @param fitness
+	 *            where to write the fitness of position i, can be null.
+	 */
+	public FitnessBatch submit(Instance[] pool, int from, int to,
+			double[] fitness) {
+		return submit(pool, from, to, fitness, null);
+	}
+
+	/**
+	 * Same as submit, with a bound on the fitness of each position (see
+	 * evaluate), can be null.
+	 */
+	public FitnessBatch submit(Instance[] pool, int from, int to,
+			double[] fitness, double[] bounds) {
+		FitnessBatch batch = new FitnessBatch(pool, fitness, bounds);
+		int chunk = (to - from) / (parallelism * 8);
+		if (chunk < 1)
+			chunk = 1;
+		for (int i = from; i < to; i += chunk) {
+			batch.register();
+			executor.execute(new Evaluation(batch, i,
+					i + chunk < to ? i + chunk : to));
+		}
+		batch.arrive();
+		return batch;
+	}
+
+	protected class Evaluation implements Runnable {
+		protected FitnessBatch batch;
+		protected int from;
+		protected int to;
+
+		public Evaluation(FitnessBatch batch, int from, int to) {
+			this.batch = batch;
+			this.from = from;
+			this.to = to;
+		}
+
+		public void run() {
+			try {
+				compute(batch, from, to);
+			} catch (Throwable t) {
+				batch.fail(t);
+			} finally {
+				batch.arrive();
 			}
 		}
 	}
 
+	/**
+	 * Compute the fitness of a range of a batch, one instance at a time.
+	 * Subclasses can override it to evaluate several instances together.
+	 */
+	protected void compute(FitnessBatch batch, int from, int to) {
+		Instance[] pool = batch.getPool();
+		for (int i = from; i < to; i++)
+			batch.set(i, compute(pool[i], batch.getBound(i)));
+	}
+
+	/**
+	 * Compute the fitness of an instance that is only of use if it reaches a
+	 * given bound. Subclasses can stop early and return any value below the
+	 * bound once it cannot be reached, by default the fitness is computed in
+	 * full.
+	 * 
+	 * @param bound
+	 *            the fitness to reach, NaN if none.
+	 */
+	protected double compute(Instance instance, double bound) {
+		return compute(instance);
+	}
+
 	protected abstract double compute(Instance instance);
 }
@@ -264,20 +264,12 @@ public class GeneticSearch implements Randomizable, ComputationListener {
 	}
 
 	/**
-	 * Compute the fitness of a given segment.
+	 * Compute the fitness of a given segment, in bulk.
 	 */
 	protected void computeFitness(int start, int end) {
-		for (int i = start; i < end; i++) {
-			if (debug) {
-				if (i % 100 == 0)
-					System.err.print(" [" + i + "]");
-			}
-			computeFitness(instancePool[i]);
-		}
 		if (debug)
-			System.err.println();
-
-		waitForComputing();
+			System.err.println("Evaluating [" + start + ", " + end + ")");
+		computer.evaluate(instancePool, start, end);
 	}
 
 	/**
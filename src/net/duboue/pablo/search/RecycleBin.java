@@ -0,0 +1,58 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.search;
+
+import java.util.ArrayList;
+
+/**
+ * A stack of discarded objects, so they can be reused instead of allocated,
+ * up to a limit. It is not thread safe, each part of the search run in
+ * parallel keeps its own.
+ * 
+ * @author Pablo Ariel Duboue (pablo.duboue@gmail.com)
+ * @version 0.02
+ */
+
+public class RecycleBin<T> {
+	private int limit;
+	private ArrayList<T> bin = new ArrayList<T>();
+
+	/**
+	 * @param limit
+	 *            most objects kept, extra ones are left to the garbage
+	 *            collector.
+	 */
+	public RecycleBin(int limit) {
+		this.limit = limit;
+	}
+
+	public void recycle(T object) {
+		if (bin.size() < limit)
+			bin.add(object);
+	}
+
+	/**
+	 * @return a discarded object, null if there is none.
+	 */
+	public T take() {
+		return bin.isEmpty() ? null : bin.remove(bin.size() - 1);
+	}
+}
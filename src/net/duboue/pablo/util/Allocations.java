@@ -0,0 +1,67 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Bytes allocated on the heap by all live threads, on JVMs that can tell.
+ * 
+ * @author Pablo Ariel Duboue (pablo.duboue@gmail.com)
+ * @version 0.02
+ */
+
+public class Allocations {
+	private static Object bean;
+
+	static {
+		try {
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean
+					&& ((com.sun.management.ThreadMXBean) threads)
+							.isThreadAllocatedMemorySupported()) {
+				((com.sun.management.ThreadMXBean) threads)
+						.setThreadAllocatedMemoryEnabled(true);
+				bean = threads;
+			}
+		} catch (Throwable e) {
+			bean = null;
+		}
+	}
+
+	/**
+	 * @return total bytes allocated so far by the live threads, -1 if not
+	 *         supported. Only differences between calls are meaningful.
+	 */
+	public static long allocatedBytes() {
+		if (bean == null)
+			return -1;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		long[] bytes = threads.getThreadAllocatedBytes(threads
+				.getAllThreadIds());
+		long result = 0;
+		for (int i = 0; i < bytes.length; i++)
+			if (bytes[i] > 0)
+				result += bytes[i];
+		return result;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.util;
+
+/**
+ * A meaningful hash value for an array of ints, to be used as a key. The array
+ * should not be modified afterwards.
+ * 
+ * @author Pablo Ariel Duboue (pablo.duboue@gmail.com)
+ * @version 0.02
+ */
+
+public class IntSeq {
+	public IntSeq(int[] seq) {
+		this.seq = seq;
+		this.hash = longHash(seq);
+	}
+
+	public int[] seq;
+
+	protected long hash;
+
+	/**
+	 * A 64-bit polynomial hash of the sequence, with a final avalanche so all
+	 * bits depend on all elements.
+	 */
+	public static long longHash(int[] seq) {
+		long base = 0x9E3779B97F4A7C15L;
+		long hash = seq.length;
+		for (int i = 0; i < seq.length; i++)
+			hash = (hash + seq[i]) * base;
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	public long longHashCode() {
+		return hash;
+	}
+
+	public int hashCode() {
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	public boolean equals(Object o) {
+		int[] oSeq;
+		if (o instanceof IntSeq) {
+			if (((IntSeq) o).hash != this.hash)
+				return false;
+			oSeq = ((IntSeq) o).seq;
+		} else if (o instanceof int[]) {
+			oSeq = (int[]) o;
+		} else
+			return false;
+		return java.util.Arrays.equals(this.seq, oSeq);
+	}
+
+	public String toString() {
+		return "IntSeq" + java.util.Arrays.toString(seq);
+	}
+
+	public int[] toArray() {
+		return seq;
+	}
+}
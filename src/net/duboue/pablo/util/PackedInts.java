@@ -0,0 +1,379 @@
+/*
+ * LearnFSA - An implementation of the Genetic Automata Learner
+ * Copyright (C) 2010 Pablo Ariel Duboue <pablo.duboue@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 
+ * 02110-1301 USA
+ */
+
+package net.duboue.pablo.util;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * An array of small integers stored in bytes, shorts or ints, whichever is the
+ * narrowest that holds the largest value needed. Values are signed, so -1 can
+ * be used as a sentinel at any width.
+ * 
+ * @author Pablo Ariel Duboue (pablo.duboue@gmail.com)
+ * @version 0.02
+ */
+
+public abstract class PackedInts implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * An array of a given length able to hold values from -1 up to maxValue.
+	 */
+	public static PackedInts allocate(int length, int maxValue) {
+		if (maxValue <= Byte.MAX_VALUE)
+			return new Bytes(new byte[length]);
+		if (maxValue <= Short.MAX_VALUE)
+			return new Shorts(new short[length]);
+		return new Ints(new int[length]);
+	}
+
+	/**
+	 * The narrowest array holding the values of an int array.
+	 */
+	public static PackedInts valueOf(int[] values, int offset, int length) {
+		int max = 0;
+		for (int i = 0; i < length; i++)
+			if (values[offset + i] > max)
+				max = values[offset + i];
+		PackedInts result = allocate(length, max);
+		result.set(0, values, offset, length);
+		return result;
+	}
+
+	/**
+	 * A view of a buffer holding values of a given width (1, 2 or 4 bytes),
+	 * in the byte order of the buffer. Nothing is copied, so a read-only
+	 * mapping of a file can be read in place; such views cannot be
+	 * serialized.
+	 */
+	public static PackedInts wrap(ByteBuffer buffer, int width) {
+		switch (width) {
+		case 1:
+			return new BufferBytes(buffer.slice());
+		case 2:
+			return new BufferShorts(buffer.asShortBuffer());
+		case 4:
+			return new BufferInts(buffer.asIntBuffer());
+		default:
+			throw new IllegalArgumentException("Unsupported width: " + width);
+		}
+	}
+
+	public abstract int length();
+
+	/** The largest value it can hold. */
+	public abstract int maxValue();
+
+	/** Bytes per value. */
+	public abstract int width();
+
+	public abstract int get(int i);
+
+	public abstract void set(int i, int value);
+
+	/**
+	 * @return whether it has room for length values up to maxValue.
+	 */
+	public boolean fits(int length, int maxValue) {
+		return length() >= length && maxValue() >= maxValue;
+	}
+
+	/**
+	 * Copy values out into an int array.
+	 */
+	public void get(int from, int[] to, int offset, int length) {
+		for (int i = 0; i < length; i++)
+			to[offset + i] = get(from + i);
+	}
+
+	/**
+	 * Copy values in from an int array.
+	 */
+	public void set(int to, int[] from, int offset, int length) {
+		for (int i = 0; i < length; i++)
+			set(to + i, from[offset + i]);
+	}
+
+	/**
+	 * Copy values into another array, of any width.
+	 */
+	public void copyTo(int from, PackedInts to, int offset, int length) {
+		for (int i = 0; i < length; i++)
+			to.set(offset + i, get(from + i));
+	}
+
+	/**
+	 * @return a copy of the first length values, at the same width.
+	 */
+	public abstract PackedInts copyOf(int length);
+
+	public int[] toArray() {
+		int[] result = new int[length()];
+		get(0, result, 0, result.length);
+		return result;
+	}
+
+	public static class Bytes extends PackedInts {
+		private static final long serialVersionUID = 1L;
+
+		public final byte[] values;
+
+		public Bytes(byte[] values) {
+			this.values = values;
+		}
+
+		public int length() {
+			return values.length;
+		}
+
+		public int maxValue() {
+			return Byte.MAX_VALUE;
+		}
+
+		public int width() {
+			return 1;
+		}
+
+		public int get(int i) {
+			return values[i];
+		}
+
+		public void set(int i, int value) {
+			values[i] = (byte) value;
+		}
+
+		public void copyTo(int from, PackedInts to, int offset, int length) {
+			if (to instanceof Bytes)
+				System.arraycopy(values, from, ((Bytes) to).values, offset,
+						length);
+			else
+				super.copyTo(from, to, offset, length);
+		}
+
+		public PackedInts copyOf(int length) {
+			return new Bytes(Arrays.copyOf(values, length));
+		}
+	}
+
+	public static class Shorts extends PackedInts {
+		private static final long serialVersionUID = 1L;
+
+		public final short[] values;
+
+		public Shorts(short[] values) {
+			this.values = values;
+		}
+
+		public int length() {
+			return values.length;
+		}
+
+		public int maxValue() {
+			return Short.MAX_VALUE;
+		}
+
+		public int width() {
+			return 2;
+		}
+
+		public int get(int i) {
+			return values[i];
+		}
+
+		public void set(int i, int value) {
+			values[i] = (short) value;
+		}
+
+		public void copyTo(int from, PackedInts to, int offset, int length) {
+			if (to instanceof Shorts)
+				System.arraycopy(values, from, ((Shorts) to).values, offset,
+						length);
+			else
+				super.copyTo(from, to, offset, length);
+		}
+
+		public PackedInts copyOf(int length) {
+			return new Shorts(Arrays.copyOf(values, length));
+		}
+	}
+
+	public static class Ints extends PackedInts {
+		private static final long serialVersionUID = 1L;
+
+		public final int[] values;
+
+		public Ints(int[] values) {
+			this.values = values;
+		}
+
+		public int length() {
+			return values.length;
+		}
+
+		public int maxValue() {
+			return Integer.MAX_VALUE;
+		}
+
+		public int width() {
+			return 4;
+		}
+
+		public int get(int i) {
+			return values[i];
+		}
+
+		public void set(int i, int value) {
+			values[i] = value;
+		}
+
+		public void get(int from, int[] to, int offset, int length) {
+			System.arraycopy(values, from, to, offset, length);
+		}
+
+		public void set(int to, int[] from, int offset, int length) {
+			System.arraycopy(from, offset, values, to, length);
+		}
+
+		public void copyTo(int from, PackedInts to, int offset, int length) {
+			if (to instanceof Ints)
+				System.arraycopy(values, from, ((Ints) to).values, offset,
+						length);
+			else
+				super.copyTo(from, to, offset, length);
+		}
+
+		public PackedInts copyOf(int length) {
+			return new Ints(Arrays.copyOf(values, length));
+		}
+	}
+
+	public static class BufferBytes extends PackedInts {
+		private static final long serialVersionUID = 1L;
+
+		public final ByteBuffer values;
+
+		public BufferBytes(ByteBuffer values) {
+			this.values = values;
+		}
+
+		public int length() {
+			return values.limit();
+		}
+
+		public int maxValue() {
+			return Byte.MAX_VALUE;
+		}
+
+		public int width() {
+			return 1;
+		}
+
+		public int get(int i) {
+			return values.get(i);
+		}
+
+		public void set(int i, int value) {
+			values.put(i, (byte) value);
+		}
+
+		public PackedInts copyOf(int length) {
+			PackedInts result = new Bytes(new byte[length]);
+			copyTo(0, result, 0, Math.min(length, length()));
+			return result;
+		}
+	}
+
+	public static class BufferShorts extends PackedInts {
+		private static final long serialVersionUID = 1L;
+
+		public final ShortBuffer values;
+
+		public BufferShorts(ShortBuffer values) {
+			this.values = values;
+		}
+
+		public int length() {
+			return values.limit();
+		}
+
+		public int maxValue() {
+			return Short.MAX_VALUE;
+		}
+
+		public int width() {
+			return 2;
+		}
+
+		public int get(int i) {
+			return values.get(i);
+		}
+
+		public void set(int i, int value) {
+			values.put(i, (short) value);
+		}
+
+		public PackedInts copyOf(int length) {
+			PackedInts result = new Shorts(new short[length]);
+			copyTo(0, result, 0, Math.min(length, length()));
+			return result;
+		}
+	}
+
+	public static class BufferInts extends PackedInts {
+		private static final long serialVersionUID = 1L;
+
+		public final IntBuffer values;
+
+		public BufferInts(IntBuffer values) {
+			this.values = values;
+		}
+
+		public int length() {
+			return values.limit();
+		}
+
+		public int maxValue() {
+			return Integer.MAX_VALUE;
+		}
+
+		public int width() {
+			return 4;
+		}
+
+		public int get(int i) {
+			return values.get(i);
+		}
+
+		public void set(int i, int value) {
+			values.put(i, value);
+		}
+
+		public PackedInts copyOf(int length) {
+			PackedInts result = new Ints(new int[length]);
+			copyTo(0, result, 0, Math.min(length, length()));
+			return result;
+		}
+	}
+}